@@ -101,6 +101,7 @@ public class AccountList extends ListActivity {
     	switch (item.getItemId()) {
     	case R.id.delete: doDeleteAccount(info.targetView); return true;
     	case R.id.edit: doEditAccount(info.targetView); return true;
+    	case R.id.syncreports: doShowSyncReports(info.targetView); return true;
     	default: return super.onContextItemSelected(item);
     	}
     }
@@ -167,6 +168,21 @@ public class AccountList extends ListActivity {
     	startActivity(editIntent);
 	}
 
+	private void doShowSyncReports(View listItem) {
+		Account account = new Account(extractAccountName(listItem), LDAPAuthenticator.ACCOUNT_TYPE);
+		String[] reports = SyncMetrics.loadReports(AccountManager.get(this), account);
+		StringBuilder message = new StringBuilder();
+		for (String report: reports) {
+			if (message.length() > 0) message.append("\n\n");
+			message.append(report);
+		}
+		new AlertDialog.Builder(this)
+		.setTitle(R.string.syncreports)
+		.setMessage(reports.length > 0 ? message.toString() : getString(R.string.nosyncreports))
+		.setPositiveButton(R.string.ok, null)
+		.show();
+	}
+
 	private static String extractAccountName(View listItem) {
 		TextView nameView = (TextView) listItem.findViewById(R.id.accountname);
     	
@@ -0,0 +1,226 @@
+package info.codethink.ldapsync;
+
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.net.SocketFactory;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.BindRequest;
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.PostConnectProcessor;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
+
+/**
+ * Process-wide pools of connected and bound LDAP connections, one for each
+ * server, security mode and bind DN.  Syncs, the entry picker and the
+ * connection test all take their connections from here, so browsing or
+ * syncing twice in a row doesn't pay for a new TCP connection, TLS
+ * handshake and bind every time.
+ *
+ * Connections are checked with a root DSE read when they're checked out
+ * (mobile networks drop idle TCP connections without telling anyone) and
+ * replaced once they get old.  A pool nobody has used for a while is
+ * closed, so idle connections don't keep the radio busy.
+ */
+class ConnectionManager {
+	private static final String TAG = "ConnectionManager";
+
+	private static final int MAX_CONNECTIONS = 4; // parallel searches plus the picker
+	private static final long MAX_CONNECTION_AGE_MILLIS = 10 * 60 * 1000;
+	private static final long HEALTH_CHECK_TIMEOUT_MILLIS = 5000;
+	private static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+	// longer than an idle pool lives, see createPool()
+	private static final long HEALTH_CHECK_INTERVAL_MILLIS = 2 * IDLE_TIMEOUT_MILLIS;
+
+	private static class PooledServer {
+		final LDAPConnectionPool pool;
+		final String password;
+		int checkedOut;
+		long lastUsed;
+
+		PooledServer(LDAPConnectionPool pool, String password) {
+			this.pool = pool;
+			this.password = password;
+		}
+	}
+
+	private static final HashMap<String, PooledServer> sPools = new HashMap<String, PooledServer>();
+	private static final IdentityHashMap<LDAPConnection, PooledServer> sCheckedOut =
+		new IdentityHashMap<LDAPConnection, PooledServer>();
+	private static Timer sEvictionTimer;
+	private static long sBindMillis;
+
+	/**
+	 * Times the bind the pool does between its two post-connect calls, and
+	 * passes both on to StartTLS when the connection uses it.
+	 */
+	private static class BindTimer implements PostConnectProcessor {
+		private final PostConnectProcessor mStartTLS;
+		private final ThreadLocal<Long> mBindStarted = new ThreadLocal<Long>();
+
+		BindTimer(PostConnectProcessor startTLS) {
+			mStartTLS = startTLS;
+		}
+
+		public void processPreAuthenticatedConnection(LDAPConnection connection) throws LDAPException {
+			if (mStartTLS != null)
+				mStartTLS.processPreAuthenticatedConnection(connection);
+			mBindStarted.set(SystemClock.elapsedRealtime());
+		}
+
+		public void processPostAuthenticatedConnection(LDAPConnection connection) throws LDAPException {
+			Long started = mBindStarted.get();
+			if (started != null) {
+				mBindStarted.remove();
+				addBindMillis(SystemClock.elapsedRealtime() - started);
+			}
+			if (mStartTLS != null)
+				mStartTLS.processPostAuthenticatedConnection(connection);
+		}
+	}
+
+	private static synchronized void addBindMillis(long millis) {
+		sBindMillis += millis;
+	}
+
+	/** Time spent binding new pooled connections, since the process started */
+	public static synchronized long getBindMillis() {
+		return sBindMillis;
+	}
+
+	/**
+	 * Takes a connection from the pool for the given settings, creating
+	 * the pool if there isn't one yet.  Hand it back with release().
+	 */
+	public static LDAPConnection getConnection(String host, int port, boolean useSSL, boolean useTLS,
+			boolean trustAnyCert, String bindDN, String password) throws LDAPException {
+		String key = host + ":" + port + "|" + useSSL + "|" + useTLS + "|" + trustAnyCert + "|" + bindDN;
+		PooledServer server;
+		synchronized (sPools) {
+			server = sPools.get(key);
+			if (server != null && (server.pool.isClosed() || !server.password.equals(password))) {
+				Log.d(TAG, "Replacing connection pool for " + host + ":" + port);
+				server.pool.close();
+				sPools.remove(key);
+				server = null;
+			}
+			if (server == null) {
+				server = new PooledServer(createPool(host, port, useSSL, useTLS, trustAnyCert, bindDN, password), password);
+				sPools.put(key, server);
+				scheduleEviction();
+			}
+			server.checkedOut++; // keeps it from being evicted while connecting
+		}
+		LDAPConnection connection = null;
+		try {
+			connection = server.pool.getConnection();
+		} finally {
+			synchronized (sPools) {
+				if (connection == null)
+					server.checkedOut--;
+				else
+					sCheckedOut.put(connection, server);
+				server.lastUsed = System.currentTimeMillis();
+			}
+		}
+		return connection;
+	}
+
+	/**
+	 * Returns a connection to its pool, or has the pool throw it away if
+	 * it's no longer usable.
+	 */
+	public static void release(LDAPConnection connection) {
+		PooledServer server;
+		synchronized (sPools) {
+			server = sCheckedOut.remove(connection);
+			if (server != null) {
+				server.checkedOut--;
+				server.lastUsed = System.currentTimeMillis();
+			}
+		}
+		if (server == null)
+			connection.close();
+		else if (connection.isConnected())
+			server.pool.releaseConnection(connection);
+		else
+			server.pool.releaseDefunctConnection(connection);
+	}
+
+	private static LDAPConnectionPool createPool(String host, int port, boolean useSSL, boolean useTLS,
+			boolean trustAnyCert, String bindDN, String password) throws LDAPException {
+		SocketFactory socketFactory = SocketFactory.getDefault();
+		PostConnectProcessor startTLS = null;
+		if (useSSL || useTLS) {
+			try {
+				if (useSSL)
+					socketFactory = SSLContextCache.getSocketFactory(host, port, trustAnyCert);
+				else
+					startTLS = SSLContextCache.getStartTLSProcessor(host, port, trustAnyCert);
+			} catch (GeneralSecurityException e) {
+				throw new LDAPException(ResultCode.LOCAL_ERROR, "Can't set up SSL for connection", e);
+			}
+		}
+		BindRequest bind = bindDN.length() > 0 ? new SimpleBindRequest(bindDN, password) : null;
+
+		Log.d(TAG, "Creating connection pool for " + host + ":" + port);
+		LDAPConnectionPool pool = new LDAPConnectionPool(
+				new SingleServerSet(host, port, socketFactory, new LDAPConnectionOptions()),
+				bind, 1, MAX_CONNECTIONS, new BindTimer(startTLS));
+		pool.setConnectionPoolName("LDAP sync " + host);
+		pool.setMaxConnectionAgeMillis(MAX_CONNECTION_AGE_MILLIS);
+		// checked on checkout and after errors only, not in the background
+		pool.setHealthCheck(new GetEntryLDAPConnectionPoolHealthCheck("", HEALTH_CHECK_TIMEOUT_MILLIS,
+				false, true, false, false, true));
+		// The pool's background thread still wakes every interval to replace
+		// connections past their maximum age, which means connecting and
+		// binding, and would wake the radio.  The interval is longer than an
+		// unused pool lives before it's evicted, so that only happens while
+		// the pool is in use.
+		pool.setHealthCheckIntervalMillis(HEALTH_CHECK_INTERVAL_MILLIS);
+		return pool;
+	}
+
+	private static void scheduleEviction() {
+		if (sEvictionTimer != null)
+			return;
+		sEvictionTimer = new Timer("ConnectionManager eviction", true);
+		sEvictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				evictIdlePools();
+			}
+		}, IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS / 2);
+	}
+
+	private static void evictIdlePools() {
+		synchronized (sPools) {
+			long now = System.currentTimeMillis();
+			for (Iterator<PooledServer> i = sPools.values().iterator(); i.hasNext(); ) {
+				PooledServer server = i.next();
+				if (server.checkedOut > 0 || now - server.lastUsed < IDLE_TIMEOUT_MILLIS)
+					continue;
+				Log.d(TAG, "Closing idle " + server.pool.getConnectionPoolName() + " pool: " + server.pool.getConnectionPoolStatistics());
+				server.pool.close();
+				i.remove();
+			}
+			if (sPools.isEmpty()) {
+				sEvictionTimer.cancel();
+				sEvictionTimer = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package info.codethink.ldapsync;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
+import android.os.Build;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Operations waiting to be applied to the contacts provider in one
+ * applyBatch call.  The batch is full when either its estimated parcel
+ * size or its operation count reaches a limit, so a few photos fill it as
+ * quickly as hundreds of phone numbers do.
+ *
+ * The count limit adapts to how long the device takes to apply a batch:
+ * a slow apply holds the contacts DB lock against the UI, so the limit
+ * shrinks, and it grows again while batches go through quickly.  What it
+ * learns is kept for the life of the process.
+ *
+ * Once startWriter() has been called, apply() hands the operations to a
+ * writer thread and returns straight away, so building the next batch
+ * overlaps with writing this one.  At most WRITER_QUEUE_SIZE batches wait
+ * for the writer; after that apply() blocks, which keeps memory bounded.
+ * Work that has to wait for a batch to be written, such as keeping the
+ * shadow copies of entries, can be queued behind it with runAfterApply().
+ */
+class ContactsBatch {
+	private static final String TAG = "ContactsBatch";
+
+	// the binder buffer is 1MB and shared by the whole process, so stay well clear of it
+	private static final int MAX_BYTES = 512 * 1024;
+	private static final int OP_OVERHEAD = 128; // URI, selection and parcel framing, roughly
+	private static final int MIN_OPS = 25;
+	private static final int MAX_OPS = 500;
+	private static final long TARGET_APPLY_MILLIS = 300;
+	private static final int WRITER_QUEUE_SIZE = 2;
+
+	private static int sMaxOps = 100;
+
+	// withYieldAllowed() was added in Froyo, after the API level we build against
+	private static final Method sWithYieldAllowed = findWithYieldAllowed();
+
+	private final ContentProviderClient mProvider;
+	private ArrayList<ContentProviderOperation> mOps = new ArrayList<ContentProviderOperation>();
+	private int mValueBytes;
+	private ArrayList<Runnable> mAfterApply = new ArrayList<Runnable>();
+
+	private BlockingQueue<QueuedBatch> mWriterQueue;
+	private Thread mWriter;
+	private volatile Exception mWriteError;
+
+	private static class QueuedBatch {
+		final ArrayList<ContentProviderOperation> ops;
+		final int bytes;
+		final ArrayList<Runnable> afterApply;
+
+		QueuedBatch(ArrayList<ContentProviderOperation> ops, int bytes, ArrayList<Runnable> afterApply) {
+			this.ops = ops;
+			this.bytes = bytes;
+			this.afterApply = afterApply;
+		}
+	}
+	private static final QueuedBatch END_OF_BATCHES = new QueuedBatch(null, 0, null);
+
+	// statistics over every batch applied
+	private int mBatches;
+	private int mTotalOps;
+	private int mLargestOps;
+	private int mLargestBytes;
+	private long mTotalMillis;
+	private long mSlowestMillis;
+	private SyncMetrics mMetrics;
+
+	public ContactsBatch(ContentProviderClient provider) {
+		mProvider = provider;
+	}
+
+	public synchronized void setMetrics(SyncMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Marks the operation as a point where the provider may yield its
+	 * transaction to other users of the DB.  Call it on the first operation
+	 * of each contact.
+	 */
+	public static ContentProviderOperation.Builder yieldPoint(ContentProviderOperation.Builder builder) {
+		if (sWithYieldAllowed != null) {
+			try {
+				sWithYieldAllowed.invoke(builder, true);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException("withYieldAllowed() not accessible", e);
+			} catch (InvocationTargetException e) {
+				throw new RuntimeException("withYieldAllowed() failed", e.getCause());
+			}
+		}
+		return builder;
+	}
+
+	private static Method findWithYieldAllowed() {
+		if (Build.VERSION.SDK_INT < 8)
+			return null;
+		try {
+			return ContentProviderOperation.Builder.class.getMethod("withYieldAllowed", boolean.class);
+		} catch (NoSuchMethodException e) {
+			Log.w(TAG, "No withYieldAllowed() on API level " + Build.VERSION.SDK_INT, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Estimates the parcelled size of a value written to a column.
+	 */
+	public static int sizeOf(String column, Object value) {
+		int size = 8 + 2 * column.length();
+		if (value instanceof byte[])
+			size += 4 + ((byte[])value).length;
+		else if (value != null)
+			size += 4 + 2 * value.toString().length();
+		return size;
+	}
+
+	public void add(ContentProviderOperation op) {
+		mOps.add(op);
+	}
+
+	/**
+	 * Adds an operation along with the estimated size of the values it
+	 * writes, as summed up by sizeOf.
+	 */
+	public void add(ContentProviderOperation op, int valueBytes) {
+		mOps.add(op);
+		mValueBytes += valueBytes;
+	}
+
+	/**
+	 * Runs the task once the operations added so far have been applied,
+	 * on the writer thread if there is one.  It isn't run at all if
+	 * applying them fails.
+	 */
+	public void runAfterApply(Runnable task) {
+		mAfterApply.add(task);
+	}
+
+	public int size() {
+		return mOps.size();
+	}
+
+	public boolean isEmpty() {
+		return mOps.isEmpty();
+	}
+
+	public int estimatedBytes() {
+		return mOps.size() * OP_OVERHEAD + mValueBytes;
+	}
+
+	public boolean isFull() {
+		return mOps.size() >= getMaxOps() || estimatedBytes() >= MAX_BYTES;
+	}
+
+	/**
+	 * Starts a thread which applies batches in the background.  Call
+	 * finish() once the last batch has been applied.
+	 */
+	public void startWriter() {
+		mWriterQueue = new ArrayBlockingQueue<QueuedBatch>(WRITER_QUEUE_SIZE);
+		mWriter = new Thread("ContactsBatch writer") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						QueuedBatch batch = mWriterQueue.take();
+						if (batch == END_OF_BATCHES) return;
+						if (mWriteError != null) continue; // drain, the sync has failed anyway
+						try {
+							write(batch.ops, batch.bytes, batch.afterApply);
+						} catch (RemoteException e) {
+							Log.e(TAG, "Background write failed", e);
+							mWriteError = e;
+						} catch (OperationApplicationException e) {
+							Log.e(TAG, "Background write failed", e);
+							mWriteError = e;
+						} catch (RuntimeException e) {
+							Log.e(TAG, "Background write failed", e);
+							mWriteError = e;
+						} catch (Throwable t) {
+							Log.e(TAG, "Background write failed", t);
+							mWriteError = new RuntimeException("Background write failed", t);
+						}
+					}
+				} catch (InterruptedException e) {
+					mWriteError = e;
+				}
+			}
+		};
+		mWriter.start();
+	}
+
+	/**
+	 * Applies and clears the batch, or queues it for the writer thread if
+	 * there is one.  A failure on the writer thread is thrown from the next
+	 * call.  If applying directly fails the operations are kept, as they
+	 * were when the sync adapter held them itself.
+	 */
+	public void apply() throws RemoteException, OperationApplicationException {
+		checkWriteError();
+		if (mOps.isEmpty() && mAfterApply.isEmpty())
+			return;
+		if (mWriter == null) {
+			write(mOps, estimatedBytes(), mAfterApply);
+			mOps.clear();
+			mAfterApply.clear();
+		} else {
+			queue(new QueuedBatch(mOps, estimatedBytes(), mAfterApply));
+			mOps = new ArrayList<ContentProviderOperation>();
+			mAfterApply = new ArrayList<Runnable>();
+		}
+		mValueBytes = 0;
+	}
+
+	/**
+	 * Applies whatever is left and waits for the writer thread, if any, to
+	 * finish writing.  The writer is stopped even if that fails.
+	 */
+	public void finish() throws RemoteException, OperationApplicationException {
+		if (mWriter == null) {
+			apply();
+			return;
+		}
+		try {
+			apply();
+		} finally {
+			stopWriter();
+		}
+		checkWriteError();
+	}
+
+	// lets the writer drain its queue and stop, and waits for it
+	private void stopWriter() throws RemoteException, OperationApplicationException {
+		try {
+			queue(END_OF_BATCHES);
+			mWriter.join();
+		} catch (InterruptedException e) {
+			throw new RemoteException();
+		} finally {
+			mWriter = null;
+		}
+	}
+
+	// waits for room in the writer's queue, as long as the writer is there to make it
+	private void queue(QueuedBatch batch) throws RemoteException, OperationApplicationException {
+		try {
+			while (!mWriterQueue.offer(batch, 1, TimeUnit.SECONDS)) {
+				if (!mWriter.isAlive()) {
+					checkWriteError();
+					throw new RemoteException(); // stopped without saying why
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RemoteException();
+		}
+	}
+
+	// once a background write has failed, every later call fails too; runtime
+	// failures are rethrown as they are, as they would be without a writer
+	private void checkWriteError() throws RemoteException, OperationApplicationException {
+		Exception e = mWriteError;
+		if (e instanceof OperationApplicationException)
+			throw (OperationApplicationException)e;
+		if (e instanceof RemoteException)
+			throw (RemoteException)e;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException)e;
+		if (e != null)
+			throw new RemoteException();
+	}
+
+	private void write(ArrayList<ContentProviderOperation> ops, int bytes, ArrayList<Runnable> afterApply)
+			throws RemoteException, OperationApplicationException {
+		int count = ops.size();
+		if (count > 0) {
+			Log.v(TAG, "Applying " + count + " operations (about " + bytes + " bytes) to contacts DB...");
+			long start = SystemClock.elapsedRealtime();
+			mProvider.applyBatch(ops);
+			long millis = SystemClock.elapsedRealtime() - start;
+			recordBatch(count, bytes, millis);
+		}
+		for (Runnable task: afterApply)
+			task.run();
+	}
+
+	private synchronized void recordBatch(int count, int bytes, long millis) {
+		mBatches++;
+		mTotalOps += count;
+		mLargestOps = Math.max(mLargestOps, count);
+		mLargestBytes = Math.max(mLargestBytes, bytes);
+		mTotalMillis += millis;
+		mSlowestMillis = Math.max(mSlowestMillis, millis);
+		if (mMetrics != null)
+			mMetrics.batchApplied(count, millis);
+		tune(count, millis);
+	}
+
+	private static synchronized int getMaxOps() {
+		return sMaxOps;
+	}
+
+	private static synchronized void tune(int count, long millis) {
+		if (millis > TARGET_APPLY_MILLIS * 2 && sMaxOps > MIN_OPS) {
+			sMaxOps = Math.max(MIN_OPS, sMaxOps / 2);
+			Log.d(TAG, "Batch of " + count + " took " + millis + "ms, limit now " + sMaxOps + " operations");
+		} else if (millis < TARGET_APPLY_MILLIS / 2 && count >= sMaxOps && sMaxOps < MAX_OPS) {
+			sMaxOps = Math.min(MAX_OPS, sMaxOps + sMaxOps / 4);
+			Log.d(TAG, "Batch of " + count + " took " + millis + "ms, limit now " + sMaxOps + " operations");
+		}
+	}
+
+	public synchronized int getBatchCount() {
+		return mBatches;
+	}
+
+	public synchronized int getTotalOperations() {
+		return mTotalOps;
+	}
+
+	public synchronized long getTotalApplyMillis() {
+		return mTotalMillis;
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (mBatches == 0)
+			return "no batches applied";
+		return mBatches + " batches, " + mTotalOps + " operations, largest " + mLargestOps + " operations/"
+			+ mLargestBytes + " bytes, " + mTotalMillis + "ms applying (slowest " + mSlowestMillis + "ms)";
+	}
+}
@@ -0,0 +1,124 @@
+package info.codethink.ldapsync;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * The children of recently browsed entries, shared by every LDAPEntryPicker
+ * in the process so that going back up the tree (or down it again) doesn't
+ * wait for the server.  Least recently used levels are dropped once the
+ * cache holds MAX_CHILDREN DNs, and levels are fetched again after
+ * MAX_AGE_MILLIS so new entries turn up eventually.
+ *
+ * Prefetching looks up the children of the entries on screen in the
+ * background, on the assumption that the user is about to open one.  Only
+ * the most recent prefetch is kept going.
+ */
+class DirectoryCache {
+	private static final String TAG = "DirectoryCache";
+
+	private static final int MAX_CHILDREN = 5000;
+	private static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+	private static final int PREFETCH_ENTRIES = 20; // about a screenful
+	private static final int PREFETCH_SIZE_LIMIT = 500; // big levels are left until they're opened
+
+	private static class Level {
+		final List<String> children;
+		final long fetched;
+
+		Level(List<String> children) {
+			this.children = children;
+			this.fetched = System.currentTimeMillis();
+		}
+	}
+
+	// in access order, so iteration starts with the least recently used
+	private static final LinkedHashMap<String, Level> sLevels = new LinkedHashMap<String, Level>(16, 0.75f, true);
+	private static int sSize;
+	private static int sPrefetchGeneration;
+
+	private static String key(Bundle settings, String dn) {
+		return settings.getString("server") + "|" + settings.getString("binddn") + "|" + LocalContactIndex.normalizeDN(dn);
+	}
+
+	/**
+	 * Returns the DNs of an entry's children, or null if they aren't cached.
+	 */
+	public static List<String> get(Bundle settings, String dn) {
+		String key = key(settings, dn);
+		synchronized (sLevels) {
+			Level level = sLevels.get(key);
+			if (level == null)
+				return null;
+			if (System.currentTimeMillis() - level.fetched > MAX_AGE_MILLIS) {
+				sLevels.remove(key);
+				sSize -= level.children.size();
+				return null;
+			}
+			return level.children;
+		}
+	}
+
+	public static void put(Bundle settings, String dn, List<String> children) {
+		Level level = new Level(new ArrayList<String>(children));
+		synchronized (sLevels) {
+			Level old = sLevels.put(key(settings, dn), level);
+			if (old != null)
+				sSize -= old.children.size();
+			sSize += children.size();
+			for (Iterator<Level> i = sLevels.values().iterator(); sSize > MAX_CHILDREN && i.hasNext(); ) {
+				Level eldest = i.next();
+				if (eldest == level)
+					continue; // a single huge level is still worth keeping
+				sSize -= eldest.children.size();
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Fetches the children of the first few of the given entries in the
+	 * background, abandoning any prefetch that's still running.
+	 */
+	public static void prefetch(final Bundle settings, final List<String> dns) {
+		final int generation;
+		synchronized (sLevels) {
+			generation = ++sPrefetchGeneration;
+		}
+		new Thread("DirectoryCache prefetch") {
+			@Override
+			public void run() {
+				LDAPContactSource src = null;
+				try {
+					for (int i = 0; i < dns.size() && i < PREFETCH_ENTRIES; i++) {
+						synchronized (sLevels) {
+							if (generation != sPrefetchGeneration) return; // the user has moved on
+						}
+						String dn = dns.get(i);
+						if (get(settings, dn) != null)
+							continue;
+						if (src == null) {
+							src = new LDAPContactSource(settings);
+							src.connect();
+						}
+						ArrayList<String> children = new ArrayList<String>();
+						if (src.browse(dn, children, PREFETCH_SIZE_LIMIT))
+							put(settings, dn, children);
+					}
+				} catch (LDAPException e) {
+					Log.d(TAG, "Prefetch stopped", e);
+				} finally {
+					if (src != null)
+						src.close();
+				}
+			}
+		}.start();
+	}
+}
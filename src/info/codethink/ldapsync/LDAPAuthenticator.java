@@ -110,6 +110,14 @@ public class LDAPAuthenticator extends AbstractAccountAuthenticator {
 		return Utils.bundleResult(false);
 	}
 
+	@Override
+	public Bundle getAccountRemovalAllowed(AccountAuthenticatorResponse response,
+			Account account) throws NetworkErrorException {
+		if (account.type.equals(ACCOUNT_TYPE))
+			ShadowStore.get(mContext).deleteAccount(account);
+		return Utils.bundleResult(true);
+	}
+
 	@Override
 	public Bundle updateCredentials(AccountAuthenticatorResponse response,
 			Account account, String authTokenType, Bundle options)
@@ -2,6 +2,7 @@ package info.codethink.ldapsync;
 
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.List;
 
 import android.accounts.Account;
 import android.accounts.AccountAuthenticatorActivity;
@@ -18,9 +19,12 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
 import android.view.Window;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Spinner;
 
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.LDAPSearchException;
 import com.unboundid.ldap.sdk.ResultCode;
 
@@ -33,7 +37,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 	private static final String KEY_INSTANCE_ID = "codethink.instanceid";
 	private static final String KEY_SETTINGS = "codethink.settings";
 	private static final String KEY_TEST_IN_PROGRESS = "codethink.testinprogress";
-	private static final String KEY_TEST_RESULT_COUNT = "codethink.testresultcount";
+	private static final String KEY_TEST_SUMMARY = "codethink.testsummary";
 	private static final String KEY_TEST_FAIL_MESSAGE = "codethink.testfailuremessage";
 
 	private static final String TAG = "LDAPAuthenticatorActivity";
@@ -49,7 +53,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 	private Account mAccount;
 	private AccountManager mMgr;
 	private boolean mWantsAuthToken;
-	private int mTestResultCount;
+	private String mTestSummary;
 	private String mTestFailureMessage;
 	private int mInstanceId;
 	private ConnectionTestTask mConnectionTestTask;
@@ -96,7 +100,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 			settings = icicle.getBundle(KEY_SETTINGS);
 			mConnectionTestInProgress = icicle.getBoolean(KEY_TEST_IN_PROGRESS);
 			mConnectionTestTask = ConnectionTestTask.get(mInstanceId);
-			mTestResultCount = icicle.getInt(KEY_TEST_RESULT_COUNT);
+			mTestSummary = icicle.getString(KEY_TEST_SUMMARY);
 			mTestFailureMessage = icicle.getString(KEY_TEST_FAIL_MESSAGE);
 			instanceMap.put(mInstanceId, new WeakReference<LDAPAuthenticatorActivity>(this));
 			if (mConnectionTestTask == null && mConnectionTestInProgress) {
@@ -141,7 +145,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		};
 		if (id == DIALOG_TEST_PASSED) {
 			return new AlertDialog.Builder(this)
-				.setMessage(getString(R.string.testpassed, mTestResultCount))
+				.setMessage(getString(R.string.testpassed, mTestSummary))
 				.setPositiveButton(R.string.ok, okClickListener)
 				.setCancelable(true)
 				.create();
@@ -171,7 +175,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		super.onPrepareDialog(id, dialog);
 		if (id == DIALOG_TEST_PASSED) {
 			AlertDialog ad = (AlertDialog)dialog;
-			ad.setMessage(getString(R.string.testpassed, mTestResultCount));
+			ad.setMessage(getString(R.string.testpassed, mTestSummary));
 		} else if (id == DIALOG_TEST_FAILED) {
 			AlertDialog ad = (AlertDialog)dialog;
 			ad.setMessage(getString(R.string.testfailed, mTestFailureMessage));
@@ -189,7 +193,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		outState.putInt(KEY_INSTANCE_ID, mInstanceId);
 		outState.putBoolean(KEY_TEST_IN_PROGRESS, mConnectionTestInProgress);
 		outState.putBundle(KEY_SETTINGS, getVisibleSettings());
-		outState.putInt(KEY_TEST_RESULT_COUNT, mTestResultCount);
+		outState.putString(KEY_TEST_SUMMARY, mTestSummary);
 		outState.putString(KEY_TEST_FAIL_MESSAGE, mTestFailureMessage);
 		mSavedInstanceState = true;
 	}
@@ -199,8 +203,13 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		super.onActivityResult(requestCode, resultCode, data);
 		
 		if (requestCode == REQUEST_PICK_BASEDN && resultCode == RESULT_OK) {
+			// the picked DN replaces the last search base, keeping its filter
 			EditText baseInput = (EditText) findViewById(R.id.basedninput);
-			baseInput.setText(data.getStringExtra(LDAPEntryPicker.KEY_DN));
+			String bases = baseInput.getText().toString();
+			int lineStart = bases.lastIndexOf('\n') + 1;
+			int filterStart = bases.indexOf('?', lineStart);
+			String filter = filterStart < 0 ? "" : bases.substring(filterStart);
+			baseInput.setText(bases.substring(0, lineStart) + data.getStringExtra(LDAPEntryPicker.KEY_DN) + filter);
 		}
 	}
 	
@@ -217,8 +226,15 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		saveDataFromView(settings, "server", R.id.serverinput);
 		saveDataFromView(settings, "binddn", R.id.binddninput);
 		saveDataFromView(settings, "basedn", R.id.basedninput);
+		saveDataFromView(settings, "filter", R.id.filterinput);
+		saveDataFromView(settings, "fullsyncinterval", R.id.fullsyncintervalinput);
+		saveDataFromView(settings, "pagesize", R.id.pagesizeinput);
 		String security = (String)((Spinner)findViewById(R.id.securityinput)).getSelectedItem();
 		settings.putString("security", security);
+		String syncMode = (String)((Spinner)findViewById(R.id.syncmodeinput)).getSelectedItem();
+		settings.putString("syncmode", syncMode);
+		boolean keepUnmapped = ((CheckBox)findViewById(R.id.keepunmappedinput)).isChecked();
+		settings.putString("keepunmapped", Boolean.toString(keepUnmapped));
 		return settings;
 	}
 	
@@ -240,11 +256,76 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		applySettingToView(settings, "server", R.id.serverinput);
 		applySettingToView(settings, "binddn", R.id.binddninput);
 		applySettingToView(settings, "basedn", R.id.basedninput);
+		applySettingToView(settings, "filter", R.id.filterinput);
+		applySettingToView(settings, "fullsyncinterval", R.id.fullsyncintervalinput);
+		applySettingToView(settings, "pagesize", R.id.pagesizeinput);
 		String security = settings.containsKey("security") ? settings.getString("security") : "None";
 		Spinner secView = (Spinner)findViewById(R.id.securityinput);
 		for (int i = 0; i < secView.getCount(); i++)
 			if (secView.getItemAtPosition(i).equals(security))
 				secView.setSelection(i);
+		String syncMode = settings.containsKey("syncmode") ? settings.getString("syncmode") : "modifyTimestamp";
+		Spinner syncModeView = (Spinner)findViewById(R.id.syncmodeinput);
+		for (int i = 0; i < syncModeView.getCount(); i++)
+			if (syncModeView.getItemAtPosition(i).equals(syncMode))
+				syncModeView.setSelection(i);
+		CheckBox keepUnmappedView = (CheckBox)findViewById(R.id.keepunmappedinput);
+		keepUnmappedView.setChecked(Boolean.parseBoolean(settings.getString("keepunmapped")));
+	}
+
+	private String describeTestResult(LDAPContactSource.TestResult result)
+	{
+		String count;
+		if (result.complete)
+			count = getString(R.string.testcount, result.entryCount);
+		else if (result.estimatedCount > result.entryCount)
+			count = getString(R.string.testestimate, result.estimatedCount);
+		else
+			count = getString(R.string.testatleast, result.entryCount);
+		return count + "\n" + getString(R.string.testtimings, result.connectMillis, result.tlsMillis,
+				result.bindMillis, result.searchMillis);
+	}
+
+	private boolean searchChanged(Bundle settings)
+	{
+		for (String key: new String[] { "basedn", "filter" }) {
+			String saved = mMgr.getUserData(mAccount, key);
+			if (!settings.getString(key).equals(saved == null ? "" : saved))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Parses the contact filter and the search bases' own filters, flagging
+	 * the field if one isn't valid.  A valid contact filter is kept in the
+	 * normalized form the parser gives back.
+	 */
+	private boolean validateFilter(Bundle settings)
+	{
+		try {
+			LDAPContactSource.parseSearchBases(settings.getString("basedn"));
+		} catch (LDAPException e) {
+			showFilterError(R.id.basedninput, e);
+			return false;
+		}
+		String filter = settings.getString("filter").trim();
+		if (filter.length() == 0)
+			return true;
+		try {
+			settings.putString("filter", Filter.create(filter).toString());
+			return true;
+		} catch (LDAPException e) {
+			showFilterError(R.id.filterinput, e);
+			return false;
+		}
+	}
+
+	private void showFilterError(int viewId, LDAPException e)
+	{
+		EditText view = (EditText)findViewById(viewId);
+		view.setError(getString(R.string.invalidfilter, e.getMessage()));
+		view.requestFocus();
 	}
 	
 	public void handleSave(View view)
@@ -256,6 +337,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 			mAccount = new Account("Testing Account", LDAPAuthenticator.ACCOUNT_TYPE);
 		
 		final Bundle settings = getVisibleSettings();
+		if (!validateFilter(settings))
+			return;
 		
 		if (action.equals(Intent.ACTION_INSERT)) {
 			Log.i(TAG, "Creating account" + mAccount.name + " with type " + mAccount.type);
@@ -269,6 +352,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 			if (mWantsAuthToken)
 				authToken = "testing_token";
 		}
+		if (!action.equals(Intent.ACTION_INSERT) && searchChanged(settings))
+			SyncState.reset(mMgr, mAccount); // only a full sync removes contacts the new search leaves out
 		Utils.saveSettings(mMgr, mAccount, settings);
 
 		Bundle result = Utils.bundleAccount(mAccount.type, mAccount.name, authToken);
@@ -281,7 +366,13 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
     	
     	Intent pickerIntent = new Intent(this, LDAPEntryPicker.class);
     	pickerIntent.putExtra(LDAPEntryPicker.KEY_SETTINGS, settings);
-    	pickerIntent.putExtra(LDAPEntryPicker.KEY_DN, settings.getString("basedn"));
+    	try {
+    		List<LDAPContactSource.SearchBase> bases = LDAPContactSource.parseSearchBases(settings.getString("basedn"));
+    		if (!bases.isEmpty())
+    			pickerIntent.putExtra(LDAPEntryPicker.KEY_DN, bases.get(bases.size() - 1).dn);
+    	} catch (LDAPException e) {
+    		Log.w(TAG, "Not starting the picker at the last search base: " + e.getMessage());
+    	}
     	startActivityForResult(pickerIntent, REQUEST_PICK_BASEDN);
     }
 	
@@ -291,7 +382,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		int mActivityInstanceId;
 		String mFailureMessage;
 		Bundle mSettings;
-		int mRecordsFound;
+		LDAPContactSource.TestResult mTestResult;
 		public ConnectionTestTask(int instanceId, Bundle settings) {
 			mActivityInstanceId = instanceId;
 			mSettings = settings;
@@ -306,8 +397,8 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 		protected Boolean doInBackground(Void... paramsUnused) {
 			try {
 				final LDAPContactSource src = new LDAPContactSource(mSettings);
-				mRecordsFound = src.test();
-				Log.d(TAG, "Connection test successful, " + mRecordsFound + " result returned");
+				mTestResult = src.test();
+				Log.d(TAG, "Connection test successful, " + mTestResult.entryCount + " results returned");
 				return true;
 			} catch (LDAPSearchException e) {
 				Log.i(TAG, "Connection test search failed", e);
@@ -345,7 +436,7 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 			Log.d(TAG, "ConnectionTestTask returned " + result + ", showing result dialog.");
 			activity.removeDialog(DIALOG_TEST_PROGRESS); // dismissDialog doesn't seem to work if the app was killed and restored
 			if (result) {
-				activity.mTestResultCount = mRecordsFound;
+				activity.mTestSummary = activity.describeTestResult(mTestResult);
 				activity.showDialog(DIALOG_TEST_PASSED);
 			} else {
 				activity.mTestFailureMessage = mFailureMessage;
@@ -361,9 +452,12 @@ public class LDAPAuthenticatorActivity extends AccountAuthenticatorActivity {
 	
 	public void handleTest(View view)
 	{
+		Bundle settings = getVisibleSettings();
+		if (!validateFilter(settings))
+			return;
 		mConnectionTestInProgress = true;
 		showDialog(DIALOG_TEST_PROGRESS);
-		mConnectionTestTask = new ConnectionTestTask(mInstanceId, getVisibleSettings());
+		mConnectionTestTask = new ConnectionTestTask(mInstanceId, settings);
 		mConnectionTestTask.execute();
 	}
 	
@@ -1,7 +1,10 @@
 package info.codethink.ldapsync;
 
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.SocketFactory;
 
@@ -9,31 +12,84 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.IntermediateResponse;
+import com.unboundid.ldap.sdk.IntermediateResponseListener;
 import com.unboundid.ldap.sdk.LDAPConnection;
 import com.unboundid.ldap.sdk.LDAPConnectionOptions;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.ResultCode;
-import com.unboundid.ldap.sdk.RootDSE;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
 import com.unboundid.ldap.sdk.SearchResultEntry;
 import com.unboundid.ldap.sdk.SearchResultListener;
 import com.unboundid.ldap.sdk.SearchResultReference;
 import com.unboundid.ldap.sdk.SearchScope;
-import com.unboundid.ldap.sdk.extensions.StartTLSExtendedRequest;
-import com.unboundid.util.ssl.SSLUtil;
-import com.unboundid.util.ssl.TrustAllTrustManager;
+import com.unboundid.ldap.sdk.controls.ContentSyncDoneControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoIntermediateResponse;
+import com.unboundid.ldap.sdk.controls.ContentSyncInfoType;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestMode;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+import com.unboundid.ldap.sdk.controls.ServerSideSortRequestControl;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import com.unboundid.ldap.sdk.controls.SortKey;
+import com.unboundid.ldap.sdk.controls.VirtualListViewRequestControl;
+import com.unboundid.ldap.sdk.controls.VirtualListViewResponseControl;
 
 public class LDAPContactSource {
 	private static final String TAG = "LDAPContactSource"; // for logging
 
+	/**
+	 * Receives the results of a content sync; changed entries still arrive
+	 * through searchEntryReturned.  Entries identified only by UUID are
+	 * passed with a null DN.
+	 */
+	public interface ContactListener extends SearchResultListener {
+		void entryDeleted(String dn, UUID uuid);
+		void entryPresent(String dn, UUID uuid);
+		/** Called after each page of results from a paged search */
+		void pageCompleted();
+	}
+
+	/**
+	 * Answers searches in place of a server, so the tests can sync from a
+	 * directory of their own making.  See setStandIn().
+	 */
+	interface StandIn {
+		/** As LDAPConnection.search(), including its use of the request's listener */
+		SearchResult search(SearchRequest request) throws LDAPSearchException;
+		SearchResultEntry getEntry(String dn, String... attributes) throws LDAPException;
+		String getRootDN() throws LDAPException;
+		boolean supportsControl(String oid);
+	}
+
 	//private static final String SEC_NONE = "None"; // unused
 	private static final String SEC_TLS = "TLS";
 	private static final String SEC_TLS_ANYCERT = "TLS (any certificate)";
 	private static final String SEC_SSL = "SSL";
 	private static final String SEC_SSL_ANYCERT = "SSL (any certificate)";
+
+	//private static final String SYNC_TIMESTAMP = "modifyTimestamp"; // default
+	private static final String SYNC_CONTENT = "Content sync (RFC 4533)";
+
+	private static final int DEFAULT_FULL_SYNC_INTERVAL_HOURS = 24;
+	private static final int DEFAULT_PAGE_SIZE = 500;
+	private static final int MAX_PARALLEL_SEARCHES = 3; // connections open at once for multiple bases
+	private static final int TEST_TIMEOUT_MILLIS = 15000;
+	private static final int TEST_PROBE_SIZE = 100;
+
+	static final String ATTR_MODIFY_TIMESTAMP = "modifyTimestamp";
+	private static final Filter DEFAULT_CONTACT_FILTER = Filter.createEqualityFilter("objectClass", "inetOrgPerson");
 	
 	private String mBindDN;
 	private String mPassword;
@@ -44,9 +100,38 @@ public class LDAPContactSource {
 	private String mHost;
 	private int mPort;
 	
-	private String mSearchBase;
+	/**
+	 * One of the account's search bases, with an optional filter that
+	 * further limits the contacts found under it.
+	 */
+	static class SearchBase {
+		final String dn;
+		final Filter filter;
+
+		SearchBase(String dn, Filter filter) {
+			this.dn = dn;
+			this.filter = filter;
+		}
+	}
+
+	private List<SearchBase> mSearchBases;
+	private LDAPException mSearchBasesError; // reported when searching, like mContactFilterError
+	private Filter mContactFilter;
+	private LDAPException mContactFilterError; // reported when searching, the constructor can't
+	private int mFullSyncIntervalHours;
+	private String mSyncMode;
+	private int mPageSize;
+	private boolean mKeepUnmapped;
+	private String[] mRequestedAttributes;
 	
 	private LDAPConnection mConnection;
+	private StandIn mStandIn; // answers instead of the server, in tests
+
+	// where the root DSE is saved between syncs, if this source has an account
+	private AccountManager mAccountManager;
+	private Account mAccount;
+
+	private SyncMetrics mMetrics; // null unless a sync is being measured
 	
 	public LDAPContactSource(Context ctx, Account ldapAccount) {
 			if (ldapAccount == null || !ldapAccount.type.equals(LDAPAuthenticator.ACCOUNT_TYPE))
@@ -55,6 +140,8 @@ public class LDAPContactSource {
 		AccountManager mgr = AccountManager.get(ctx);
 		Bundle settings = Utils.getSavedSettngs(mgr, ldapAccount);
 		initFromSettings(settings);
+		mAccountManager = mgr;
+		mAccount = ldapAccount;
 	}
 
 	public LDAPContactSource(Bundle accountSettings)
@@ -67,7 +154,23 @@ public class LDAPContactSource {
 		mBindDN = settings.getString("binddn");
 		mPassword = settings.getString("password");
 		String security = settings.getString("security");
-		mSearchBase = settings.getString("basedn");
+		try {
+			mSearchBases = parseSearchBases(settings.getString("basedn"));
+		} catch (LDAPException e) {
+			mSearchBases = new ArrayList<SearchBase>();
+			mSearchBasesError = e;
+		}
+		mSyncMode = settings.getString("syncmode");
+		mFullSyncIntervalHours = parseInt(settings.getString("fullsyncinterval"), DEFAULT_FULL_SYNC_INTERVAL_HOURS);
+		mKeepUnmapped = Boolean.parseBoolean(settings.getString("keepunmapped"));
+		mPageSize = parseInt(settings.getString("pagesize"), DEFAULT_PAGE_SIZE); // 0 turns paging off
+		String filter = settings.getString("filter");
+		try {
+			mContactFilter = filter == null || filter.trim().length() == 0 ?
+					DEFAULT_CONTACT_FILTER : Filter.create(filter.trim());
+		} catch (LDAPException e) {
+			mContactFilterError = e;
+		}
 		
 		mUseTLS = security.equals(SEC_TLS) || security.equals(SEC_TLS_ANYCERT);
 		mUseSSL = security.equals(SEC_SSL) || security.equals(SEC_SSL_ANYCERT);
@@ -83,108 +186,889 @@ public class LDAPContactSource {
 		}
 	}
 
+	/**
+	 * Parses the basedn setting, which holds one search base per line.  A
+	 * base may be followed by "?" and a filter, LDAP URL style, e.g.
+	 * "ou=Sales,dc=example,dc=com?(l=Boston)".  Throws if a filter isn't
+	 * valid, naming its base.
+	 */
+	static List<SearchBase> parseSearchBases(String setting) throws LDAPException {
+		ArrayList<SearchBase> bases = new ArrayList<SearchBase>();
+		if (setting == null)
+			return bases;
+		for (String line: setting.split("\n")) {
+			line = line.trim();
+			if (line.length() == 0) continue;
+			Filter filter = null;
+			int q = line.indexOf('?');
+			if (q >= 0) {
+				String filterString = line.substring(q + 1).trim();
+				line = line.substring(0, q).trim();
+				if (filterString.length() > 0) {
+					try {
+						filter = Filter.create(filterString);
+					} catch (LDAPException e) {
+						throw new LDAPException(ResultCode.FILTER_ERROR, "Bad filter for " + line + ": " + e.getMessage(), e);
+					}
+				}
+			}
+			bases.add(new SearchBase(line, filter));
+		}
+		return bases;
+	}
+
+	/**
+	 * Returns the configured search bases, or the server's first naming
+	 * context if there aren't any.
+	 */
+	private List<SearchBase> getSearchBases() throws LDAPException {
+		if (mSearchBasesError != null)
+			throw mSearchBasesError;
+		if (!mSearchBases.isEmpty())
+			return mSearchBases;
+		ArrayList<SearchBase> bases = new ArrayList<SearchBase>();
+		bases.add(new SearchBase(getRootDN(), null));
+		return bases;
+	}
+
+	/**
+	 * Combines the account's contact filter with the base's own, if any.
+	 */
+	private Filter contactFilter(SearchBase base) throws LDAPException {
+		if (mContactFilterError != null)
+			throw new LDAPException(ResultCode.FILTER_ERROR, "Bad contact filter setting: " + mContactFilterError.getMessage(), mContactFilterError);
+		Filter filter = mContactFilter;
+		if (base.filter != null)
+			filter = Filter.createANDFilter(filter, base.filter);
+		return filter;
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring bad numeric setting " + value);
+			return defaultValue;
+		}
+	}
+
+	public void setMetrics(SyncMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Sends every search and entry read to the stand-in instead of the
+	 * server, which is then never connected to.
+	 */
+	void setStandIn(StandIn standIn) {
+		mStandIn = standIn;
+	}
+
 	public void connect() throws LDAPException {
-		LDAPConnectionOptions options = new LDAPConnectionOptions();
-		options.setAutoReconnect(true);
-		
-		SocketFactory socketFactory = null;
-		SSLUtil sslutil = null;
-		if (mUseSSL || mUseTLS)
-			if (mTrustAnyCert)
-				sslutil = new SSLUtil(new TrustAllTrustManager());
-			else
-				sslutil = new SSLUtil();
-		if (mUseSSL) {
+		long start = SystemClock.elapsedRealtime();
+		if (mStandIn == null)
+			mConnection = openConnection();
+		if (mMetrics != null)
+			mMetrics.connected(SystemClock.elapsedRealtime() - start);
+	}
+
+	/**
+	 * Takes a bound connection from the shared pool for these settings.
+	 * Give it back with ConnectionManager.release().  Returns null when
+	 * there's a stand-in, which needs no connection.
+	 */
+	private LDAPConnection openConnection() throws LDAPException {
+		if (mStandIn != null)
+			return null;
+		return ConnectionManager.getConnection(mHost, mPort, mUseSSL, mUseTLS, mTrustAnyCert, mBindDN, mPassword);
+	}
+
+	private SearchResult search(LDAPConnection connection, SearchRequest request) throws LDAPSearchException {
+		return mStandIn != null ? mStandIn.search(request) : connection.search(request);
+	}
+	
+	public void browse(String dn, List<String> outChildren) throws LDAPException
+	{
+		browse(dn, outChildren, 0);
+	}
+
+	/**
+	 * Lists the DNs of an entry's children, without any of their attributes.
+	 * Returns false (with outChildren left empty) if there are more than
+	 * sizeLimit of them; 0 means no limit.
+	 */
+	public boolean browse(String dn, List<String> outChildren, int sizeLimit) throws LDAPException
+	{
+		SearchRequest request = new SearchRequest(dn, SearchScope.ONE, Filter.createPresenceFilter("objectClass"),
+				SearchRequest.NO_ATTRIBUTES);
+		request.setSizeLimit(sizeLimit);
+		SearchResult sr;
+		try {
+			sr = search(mConnection, request);
+		} catch (LDAPSearchException e) {
+			if (sizeLimit == 0 || e.getResultCode() != ResultCode.SIZE_LIMIT_EXCEEDED)
+				throw e;
+			return false;
+		}
+		for (SearchResultEntry entry: sr.getSearchEntries()) {
+			outChildren.add(entry.getDN());
+		}
+		return true;
+	}
+	
+	/**
+	 * A slice of an entry's children, as returned by browseWindow() or
+	 * browsePage().
+	 */
+	public static class ChildWindow {
+		public final ArrayList<String> dns = new ArrayList<String>();
+		/** The server's count of all the children, or -1 if it didn't give one */
+		public int total = -1;
+		/** VLV context ID, or paged results cookie for the next page (null after the last) */
+		public ASN1OctetString cookie;
+	}
+
+	/**
+	 * Tells whether browseWindow() can be used, which needs both server
+	 * side sorting and virtual list views.
+	 */
+	public boolean supportsWindowedBrowse() throws LDAPException {
+		return supportsControl(ServerSideSortRequestControl.SERVER_SIDE_SORT_REQUEST_OID)
+			&& supportsControl(VirtualListViewRequestControl.VIRTUAL_LIST_VIEW_REQUEST_OID);
+	}
+
+	/**
+	 * Returns the naming attribute of one of an entry's children, which is
+	 * what its children are best sorted by, or null if it has none.  Big
+	 * containers almost always hold one kind of entry.
+	 */
+	public String getChildNamingAttribute(String dn) throws LDAPException {
+		SearchRequest request = new SearchRequest(dn, SearchScope.ONE, Filter.createPresenceFilter("objectClass"),
+				SearchRequest.NO_ATTRIBUTES);
+		request.setSizeLimit(1);
+		List<SearchResultEntry> entries;
+		try {
+			entries = search(mConnection, request).getSearchEntries();
+		} catch (LDAPSearchException e) {
+			if (e.getResultCode() != ResultCode.SIZE_LIMIT_EXCEEDED)
+				throw e;
+			entries = e.getSearchEntries();
+		}
+		if (entries.isEmpty())
+			return null;
+		return new DN(entries.get(0).getDN()).getRDN().getAttributeNames()[0];
+	}
+
+	/**
+	 * Fetches count of an entry's children starting at the given offset
+	 * (from 0) in order of sortAttribute, using a virtual list view so the
+	 * rest never leave the server.  Pass the cookie from the previous window
+	 * of the same list, if there was one.
+	 */
+	public ChildWindow browseWindow(String dn, String sortAttribute, int offset, int count, ASN1OctetString contextID)
+			throws LDAPException
+	{
+		SearchRequest request = new SearchRequest(dn, SearchScope.ONE, Filter.createPresenceFilter("objectClass"),
+				SearchRequest.NO_ATTRIBUTES);
+		request.addControl(new ServerSideSortRequestControl(new SortKey(sortAttribute)));
+		request.addControl(new VirtualListViewRequestControl(offset + 1, 0, count - 1, 0, contextID));
+		SearchResult sr = search(mConnection, request);
+		if (sr.getResultCode() != ResultCode.SUCCESS) {
+			throw new LDAPException(sr);
+		}
+		ChildWindow window = new ChildWindow();
+		for (SearchResultEntry entry: sr.getSearchEntries())
+			window.dns.add(entry.getDN());
+		Control c = sr.getResponseControl(VirtualListViewResponseControl.VIRTUAL_LIST_VIEW_RESPONSE_OID);
+		if (c != null) {
+			VirtualListViewResponseControl vlv = c instanceof VirtualListViewResponseControl ?
+					(VirtualListViewResponseControl)c : new VirtualListViewResponseControl(c.getOID(), c.isCritical(), c.getValue());
+			if (vlv.getResultCode() != ResultCode.SUCCESS)
+				throw new LDAPException(vlv.getResultCode(), "Server couldn't show children of " + dn + " as a list");
+			window.total = vlv.getContentCount();
+			window.cookie = vlv.getContextID();
+		}
+		return window;
+	}
+
+	/**
+	 * Fetches the next count of an entry's children in the order the server
+	 * keeps them, for servers without virtual list views.  Pass null to
+	 * start, then the previous page's cookie; paging state lives on the
+	 * connection, so every page has to come from the same source.
+	 */
+	public ChildWindow browsePage(String dn, int count, ASN1OctetString cookie) throws LDAPException
+	{
+		SearchRequest request = new SearchRequest(dn, SearchScope.ONE, Filter.createPresenceFilter("objectClass"),
+				SearchRequest.NO_ATTRIBUTES);
+		request.addControl(new SimplePagedResultsControl(count, cookie));
+		SearchResult sr = search(mConnection, request);
+		if (sr.getResultCode() != ResultCode.SUCCESS) {
+			throw new LDAPException(sr);
+		}
+		ChildWindow window = new ChildWindow();
+		for (SearchResultEntry entry: sr.getSearchEntries())
+			window.dns.add(entry.getDN());
+		SimplePagedResultsControl paged = getPagedResultsControl(sr);
+		if (paged != null) {
+			if (paged.getSize() > 0) window.total = paged.getSize();
+			if (paged.moreResultsToReturn()) window.cookie = paged.getCookie();
+		}
+		return window;
+	}
+
+	/**
+	 * Reads the given attributes of a single entry, or returns null if it no
+	 * longer exists.
+	 */
+	public SearchResultEntry fetchEntry(String dn, String... attributes) throws LDAPException
+	{
+		if (mStandIn != null)
+			return mStandIn.getEntry(dn, attributes);
+		return mConnection.getEntry(dn, attributes);
+	}
+
+	public boolean search(SearchResultListener listener) throws LDAPException
+	{
+		return search(listener, null, false);
+	}
+
+	/**
+	 * Searches for contacts.  If a SyncState is given, the modifyTimestamp of
+	 * each entry is recorded in it, and an incremental search only returns
+	 * entries modified at or after the state's high-water mark.
+	 *
+	 * Results are fetched in pages (if the server supports it) and a
+	 * ContactListener is told about each page boundary.  Returns false if
+	 * the server stopped early because of a size limit, in which case the
+	 * listener has only seen part of the directory.
+	 *
+	 * With several search bases, up to MAX_PARALLEL_SEARCHES of them are
+	 * searched at once on connections of their own.  The listener is only
+	 * called by one thread at a time, and an entry found under more than
+	 * one base is only passed on by the first of them.
+	 */
+	public boolean search(final SearchResultListener listener, final SyncState state, final boolean incremental) throws LDAPException
+	{
+		final List<SearchBase> bases = getSearchBases();
+		final boolean paged = mPageSize > 0 && supportsControl(SimplePagedResultsControl.PAGED_RESULTS_OID);
+		if (mPageSize > 0 && !paged)
+			Log.i(TAG, "Server doesn't support paged results, searching without them");
+		final BaseResultListener[] resultListeners = new BaseResultListener[bases.size()];
+		for (int b = 0; b < bases.size(); b++)
+			resultListeners[b] = new BaseResultListener(listener, state, findEarlierOverlaps(bases, b));
+		if (bases.size() == 1)
+			return searchBase(mConnection, bases.get(0), paged, listener, resultListeners[0], state, incremental);
+
+		final AtomicInteger nextBase = new AtomicInteger();
+		final boolean[] complete = new boolean[] { true };
+		final LDAPException[] failure = new LDAPException[1];
+		int numSearches = Math.min(bases.size(), MAX_PARALLEL_SEARCHES);
+		final Thread[] searches = new Thread[numSearches];
+		final LDAPConnection[] connections = new LDAPConnection[numSearches]; // guarded by itself
+		for (int i = 0; i < numSearches; i++) {
+			final int index = i;
+			final boolean ownConnection = i > 0; // the first search uses the main connection
+			searches[i] = new Thread("LDAP search " + i) {
+				@Override
+				public void run() {
+					LDAPConnection connection = null;
+					try {
+						connection = ownConnection ? openConnection() : mConnection;
+						synchronized (connections) {
+							if (isInterrupted()) return;
+							connections[index] = connection;
+						}
+						for (int b = nextBase.getAndIncrement(); b < bases.size(); b = nextBase.getAndIncrement()) {
+							synchronized (failure) {
+								if (failure[0] != null) return;
+							}
+							if (isInterrupted()) return;
+							if (!searchBase(connection, bases.get(b), paged, listener, resultListeners[b], state, incremental)) {
+								synchronized (complete) {
+									complete[0] = false;
+								}
+							}
+						}
+					} catch (LDAPException e) {
+						synchronized (failure) {
+							if (failure[0] == null) failure[0] = e;
+						}
+					} finally {
+						synchronized (connections) {
+							connections[index] = null; // so abortSearches() can't close it once it's back in the pool
+						}
+						if (ownConnection && connection != null)
+							ConnectionManager.release(connection);
+					}
+				}
+			};
+			searches[i].start();
+		}
+		for (Thread search: searches) {
 			try {
-				socketFactory = sslutil.createSSLSocketFactory();
-			} catch (GeneralSecurityException e) {
-				throw new LDAPException(ResultCode.LOCAL_ERROR, "Can't get socket factory for SSL connection", e);
+				search.join();
+			} catch (InterruptedException e) {
+				abortSearches(searches, connections);
+				throw new LDAPException(ResultCode.LOCAL_ERROR, "Interrupted while searching", e);
 			}
 		}
-		
-		
-		LDAPConnection connection = new LDAPConnection(socketFactory, options, mHost, mPort);
-		if (mUseTLS) {
-			boolean tlsEstablished = false;
-			try {
-				final ExtendedResult tlsresult = connection.processExtendedOperation(
-						new StartTLSExtendedRequest(sslutil.createSSLContext()));
-				if (tlsresult.getResultCode() != ResultCode.SUCCESS)
-					throw new LDAPException(tlsresult);
-				tlsEstablished = true;
-			} catch (GeneralSecurityException e) {
-				throw new LDAPException(ResultCode.LOCAL_ERROR, "Can't get SSL context for TLS connection", e);
-			} finally {
-				if (!tlsEstablished) {
-					connection.close();
-					connection = null;
+		synchronized (failure) {
+			if (failure[0] != null) throw failure[0];
+		}
+		synchronized (complete) {
+			return complete[0];
+		}
+	}
+
+	/**
+	 * Stops the searches of an interrupted sync.  A search waiting for the
+	 * server doesn't notice being interrupted, so its connection is closed
+	 * under it; the search thread then gives it back to the pool as defunct.
+	 */
+	private static void abortSearches(Thread[] searches, LDAPConnection[] connections) {
+		synchronized (connections) {
+			for (int i = 0; i < searches.length; i++) {
+				searches[i].interrupt();
+				if (connections[i] != null)
+					connections[i].close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the bases before the given one whose subtrees overlap it,
+	 * because one lies under the other.
+	 */
+	private static List<SearchBase> findEarlierOverlaps(List<SearchBase> bases, int index) throws LDAPException {
+		ArrayList<SearchBase> overlaps = new ArrayList<SearchBase>();
+		String dn = bases.get(index).dn;
+		for (int b = 0; b < index; b++) {
+			String earlier = bases.get(b).dn;
+			if (DN.isDescendantOf(dn, earlier, true) || DN.isDescendantOf(earlier, dn, true))
+				overlaps.add(bases.get(b));
+		}
+		return overlaps;
+	}
+
+	/**
+	 * Passes the entries found under one base on to the caller's listener,
+	 * one thread at a time, except for those an earlier, overlapping base
+	 * passes on itself: the ones under its DN that match its filter.  The
+	 * attributes those filters test are asked for too, so they can be
+	 * checked, and taken out again before the entry is passed on if they
+	 * weren't asked for otherwise.
+	 */
+	private class BaseResultListener implements SearchResultListener {
+		private static final long serialVersionUID = 1L;
+		private final SearchResultListener mListener;
+		private final SyncState mState;
+		private final String[] mEarlierDNs;
+		private final Filter[] mEarlierFilters; // null entries for bases without a filter of their own
+		private final String[] mAttributes;
+		private final String[] mFilterOnlyAttributes; // asked for only to check the earlier filters
+
+		BaseResultListener(SearchResultListener listener, SyncState state, List<SearchBase> earlier) {
+			mListener = listener;
+			mState = state;
+			mEarlierDNs = new String[earlier.size()];
+			mEarlierFilters = new Filter[earlier.size()];
+			ArrayList<String> attributes = new ArrayList<String>();
+			attributes.add(ATTR_MODIFY_TIMESTAMP);
+			for (int i = 0; i < mEarlierDNs.length; i++) {
+				SearchBase base = earlier.get(i);
+				mEarlierDNs[i] = base.dn;
+				mEarlierFilters[i] = base.filter;
+				if (base.filter != null)
+					addAttributeNames(base.filter, attributes);
+			}
+			mAttributes = getRequestedAttributes(attributes.toArray(new String[attributes.size()]));
+			ArrayList<String> filterOnly = new ArrayList<String>();
+			if (mRequestedAttributes != null) { // otherwise they'd all be returned anyway
+				for (String name: attributes) {
+					if (!name.equalsIgnoreCase(ATTR_MODIFY_TIMESTAMP) && !containsIgnoreCase(mRequestedAttributes, name))
+						filterOnly.add(name);
 				}
 			}
+			mFilterOnlyAttributes = filterOnly.toArray(new String[filterOnly.size()]);
 		}
-		
-		if (mBindDN.length() > 0) {
-			boolean bound = false;
-			try {
-				connection.bind(mBindDN, mPassword);
-				bound = true;
-			} finally {
-				if (!bound) {
-					connection.close();
-					connection = null;
+
+		public String[] getAttributes() {
+			return mAttributes;
+		}
+
+		public void searchReferenceReturned(SearchResultReference ref) {
+			synchronized (mListener) {
+				mListener.searchReferenceReturned(ref);
+			}
+		}
+
+		public void searchEntryReturned(SearchResultEntry entry) {
+			if (mMetrics != null)
+				mMetrics.entryReceived(entry);
+			if (mState != null) {
+				String timestamp = entry.getAttributeValue(ATTR_MODIFY_TIMESTAMP);
+				if (timestamp != null) mState.entryModified(timestamp);
+			}
+			if (isFoundEarlier(entry))
+				return;
+			entry = withoutFilterOnlyAttributes(entry);
+			synchronized (mListener) {
+				mListener.searchEntryReturned(entry);
+			}
+		}
+
+		private SearchResultEntry withoutFilterOnlyAttributes(SearchResultEntry entry) {
+			if (mFilterOnlyAttributes.length == 0)
+				return entry;
+			ArrayList<Attribute> kept = new ArrayList<Attribute>();
+			for (Attribute attrib: entry.getAttributes()) {
+				if (!containsIgnoreCase(mFilterOnlyAttributes, attrib.getBaseName()))
+					kept.add(attrib);
+			}
+			if (kept.size() == entry.getAttributes().size())
+				return entry;
+			return new SearchResultEntry(entry.getMessageID(), entry.getDN(), kept, entry.getControls());
+		}
+
+		private boolean isFoundEarlier(SearchResultEntry entry) {
+			for (int i = 0; i < mEarlierDNs.length; i++) {
+				try {
+					if (DN.isDescendantOf(entry.getDN(), mEarlierDNs[i], true)
+							&& (mEarlierFilters[i] == null || mEarlierFilters[i].matchesEntry(entry)))
+						return true;
+				} catch (LDAPException e) {
+					Log.w(TAG, "Can't tell if " + entry.getDN() + " is also under " + mEarlierDNs[i], e);
 				}
 			}
+			return false;
 		}
-		
-		mConnection = connection;
 	}
-	
-	public void browse(String dn, List<String> outChildren) throws LDAPException
+
+	private static boolean containsIgnoreCase(String[] names, String name) {
+		for (String n: names) {
+			if (n.equalsIgnoreCase(name)) return true;
+		}
+		return false;
+	}
+
+	private static void addAttributeNames(Filter filter, List<String> outNames) {
+		String name = filter.getAttributeName();
+		if (name != null && !outNames.contains(name))
+			outNames.add(name);
+		if (filter.getNOTComponent() != null)
+			addAttributeNames(filter.getNOTComponent(), outNames);
+		for (Filter component: filter.getComponents())
+			addAttributeNames(component, outNames);
+	}
+
+	private boolean searchBase(LDAPConnection connection, SearchBase base, boolean usePaging, SearchResultListener listener,
+			BaseResultListener resultListener, SyncState state, boolean incremental) throws LDAPException
 	{
-		SearchResult sr = mConnection.search(dn, SearchScope.ONE, "(objectClass=*)");
-		for (SearchResultEntry entry: sr.getSearchEntries()) {
-			outChildren.add(entry.getDN());
+		Filter filter = contactFilter(base);
+		if (incremental) {
+			filter = Filter.createANDFilter(filter,
+					Filter.createGreaterOrEqualFilter(ATTR_MODIFY_TIMESTAMP, state.mLastModified));
 		}
+		return pagedSearch(connection, base.dn, filter, resultListener.getAttributes(),
+				usePaging, listener, resultListener);
 	}
-	
-	public void search(SearchResultListener listener) throws LDAPException
+
+	/**
+	 * Searches the subtree a page at a time, telling the listener about
+	 * each page boundary.  Returns false if the server's size limit cut the
+	 * search short.
+	 */
+	private boolean pagedSearch(LDAPConnection connection, String baseDN, Filter filter, String[] attributes,
+			boolean usePaging, SearchResultListener listener, SearchResultListener resultListener) throws LDAPException
+	{
+		Log.v(TAG, "Searching " + baseDN + " for " + filter + (usePaging ? " with page size " + mPageSize : " unpaged"));
+
+		ASN1OctetString cookie = null;
+		do {
+			SearchRequest request = new SearchRequest(resultListener, baseDN, SearchScope.SUB, filter, attributes);
+			if (usePaging)
+				request.addControl(new SimplePagedResultsControl(mPageSize, cookie));
+			SearchResult sr;
+			try {
+				sr = search(connection, request);
+			} catch (LDAPSearchException e) {
+				if (e.getResultCode() != ResultCode.SIZE_LIMIT_EXCEEDED)
+					throw e;
+				Log.w(TAG, "Search of " + baseDN + " hit the server size limit after " + e.getEntryCount() + " entries", e);
+				pageCompleted(listener);
+				return false;
+			}
+			if (sr.getResultCode() != ResultCode.SUCCESS) {
+				throw new LDAPException(sr);
+			}
+
+			cookie = null;
+			SimplePagedResultsControl pagedControl = getPagedResultsControl(sr);
+			if (pagedControl != null && pagedControl.moreResultsToReturn())
+				cookie = pagedControl.getCookie();
+			pageCompleted(listener);
+		} while (cookie != null);
+		return true;
+	}
+
+	/**
+	 * Searches every base for the contacts that have any of the given
+	 * attributes, returning only those attributes, a page at a time.  This
+	 * is how the photo pass reads the deferred attributes without asking
+	 * for each entry separately.  Returns false if a size limit stopped it
+	 * short.
+	 */
+	public boolean searchWithAttributes(String[] attributes, SearchResultListener listener) throws LDAPException
+	{
+		boolean paged = mPageSize > 0 && supportsControl(SimplePagedResultsControl.PAGED_RESULTS_OID);
+		Filter[] present = new Filter[attributes.length];
+		for (int i = 0; i < attributes.length; i++)
+			present[i] = Filter.createPresenceFilter(attributes[i]);
+		Filter hasAny = present.length == 1 ? present[0] : Filter.createORFilter(present);
+		boolean complete = true;
+		for (SearchBase base: getSearchBases()) {
+			Filter filter = Filter.createANDFilter(contactFilter(base), hasAny);
+			if (!pagedSearch(mConnection, base.dn, filter, attributes, paged, listener, listener))
+				complete = false;
+		}
+		return complete;
+	}
+
+	private static SimplePagedResultsControl getPagedResultsControl(SearchResult sr) throws LDAPException {
+		Control paged = sr.getResponseControl(SimplePagedResultsControl.PAGED_RESULTS_OID);
+		if (paged == null || paged instanceof SimplePagedResultsControl)
+			return (SimplePagedResultsControl)paged;
+		return new SimplePagedResultsControl(paged.getOID(), paged.isCritical(), paged.getValue());
+	}
+
+	/**
+	 * Limits contact searches to the given attributes.  If this isn't called
+	 * (or is passed null) all user attributes are returned.
+	 */
+	public void setRequestedAttributes(String[] attributes) {
+		mRequestedAttributes = attributes;
+	}
+
+	public boolean keepUnmappedAttributes() {
+		return mKeepUnmapped;
+	}
+
+	private String[] getRequestedAttributes(String... operationalAttributes) {
+		String[] requested = mRequestedAttributes;
+		if (requested == null)
+			requested = new String[] { SearchRequest.ALL_USER_ATTRIBUTES };
+		if (requested.length + operationalAttributes.length == 0)
+			return new String[] { SearchRequest.NO_ATTRIBUTES };
+		String[] attributes = new String[requested.length + operationalAttributes.length];
+		System.arraycopy(requested, 0, attributes, 0, requested.length);
+		System.arraycopy(operationalAttributes, 0, attributes, requested.length, operationalAttributes.length);
+		return attributes;
+	}
+
+	private static void pageCompleted(SearchResultListener listener) {
+		if (listener instanceof ContactListener) {
+			synchronized (listener) {
+				((ContactListener)listener).pageCompleted();
+			}
+		}
+	}
+
+	/**
+	 * Runs an RFC 4533 refreshOnly content synchronization search, starting
+	 * from the cookie in the SyncState if there is one.  Changed entries are
+	 * passed to the listener as normal search results; deletions and
+	 * unchanged-but-present entries are reported separately.  Returns true
+	 * if the results describe the whole directory content (so local contacts
+	 * the server didn't mention are gone) rather than just the changes.
+	 */
+	public boolean contentSync(final ContactListener listener, final SyncState state) throws LDAPException
 	{
-		String baseDN = mSearchBase;
-		if (baseDN == null) {
-			baseDN = getRootDN();
+		SearchBase base = getSearchBases().get(0);
+		String baseDN = base.dn;
+		ASN1OctetString cookie = state.getCookie();
+		SearchResultListener resultListener = new SearchResultListener() {
+			private static final long serialVersionUID = 1L;
+			public void searchReferenceReturned(SearchResultReference ref) {
+				listener.searchReferenceReturned(ref);
+			}
+			public void searchEntryReturned(SearchResultEntry entry) {
+				if (mMetrics != null)
+					mMetrics.entryReceived(entry);
+				ContentSyncStateControl syncState = getSyncStateControl(entry);
+				if (syncState == null) {
+					listener.searchEntryReturned(entry);
+					return;
+				}
+				if (syncState.getCookie() != null)
+					state.cookieReturned(syncState.getCookie());
+				if (syncState.getState() == ContentSyncState.DELETE) {
+					listener.entryDeleted(entry.getDN(), syncState.getEntryUUID());
+				} else if (syncState.getState() == ContentSyncState.PRESENT) {
+					listener.entryPresent(entry.getDN(), syncState.getEntryUUID());
+				} else {
+					listener.searchEntryReturned(entry);
+				}
+			}
+		};
+		final boolean[] presentPhase = new boolean[] { false }; // wrap in array so the inner listener can update
+		IntermediateResponseListener infoListener = new IntermediateResponseListener() {
+			private static final long serialVersionUID = 1L;
+			public void intermediateResponseReturned(IntermediateResponse response) {
+				ContentSyncInfoIntermediateResponse info;
+				try {
+					info = ContentSyncInfoIntermediateResponse.decode(response);
+				} catch (LDAPException e) {
+					Log.w(TAG, "Ignoring undecodable intermediate response " + response, e);
+					return;
+				}
+				if (info.getCookie() != null)
+					state.cookieReturned(info.getCookie());
+				if (info.getType() == ContentSyncInfoType.REFRESH_PRESENT) {
+					presentPhase[0] = true;
+				} else if (info.getType() == ContentSyncInfoType.SYNC_ID_SET) {
+					for (UUID uuid: info.getEntryUUIDs()) {
+						if (info.refreshDeletes())
+							listener.entryDeleted(null, uuid);
+						else
+							listener.entryPresent(null, uuid);
+					}
+					if (!info.refreshDeletes()) presentPhase[0] = true;
+				}
+			}
+		};
+
+		SearchRequest request = new SearchRequest(resultListener, baseDN, SearchScope.SUB,
+				contactFilter(base), getRequestedAttributes());
+		request.addControl(new ContentSyncRequestControl(true, ContentSyncRequestMode.REFRESH_ONLY, cookie, false));
+		request.setIntermediateResponseListener(infoListener);
+		Log.v(TAG, "Content sync of " + baseDN + (cookie == null ? " from scratch" : " from saved cookie"));
+		SearchResult sr;
+		try {
+			sr = search(mConnection, request);
+		} catch (LDAPSearchException e) {
+			if (cookie == null || e.getResultCode() != ResultCode.E_SYNC_REFRESH_REQUIRED)
+				throw e;
+			Log.i(TAG, "Server wants a full refresh, discarding sync cookie");
+			state.clearCookie();
+			return contentSync(listener, state);
 		}
-		SearchResult sr = mConnection.search(listener, baseDN, SearchScope.SUB, "(objectClass=inetOrgPerson)");
 		if (sr.getResultCode() != ResultCode.SUCCESS) {
 			throw new LDAPException(sr);
 		}
+
+		boolean refreshDeletes = false;
+		Control done = sr.getResponseControl(ContentSyncDoneControl.SYNC_DONE_OID);
+		if (done != null) {
+			ContentSyncDoneControl doneControl = done instanceof ContentSyncDoneControl ?
+					(ContentSyncDoneControl)done : new ContentSyncDoneControl(done.getOID(), done.isCritical(), done.getValue());
+			if (doneControl.getCookie() != null)
+				state.cookieReturned(doneControl.getCookie());
+			refreshDeletes = doneControl.refreshDeletes();
+		}
+		return cookie == null || presentPhase[0] || !refreshDeletes;
+	}
+
+	private static ContentSyncStateControl getSyncStateControl(SearchResultEntry entry) {
+		Control c = entry.getControl(ContentSyncStateControl.SYNC_STATE_OID);
+		if (c == null || c instanceof ContentSyncStateControl)
+			return (ContentSyncStateControl)c;
+		try {
+			return new ContentSyncStateControl(c.getOID(), c.isCritical(), c.getValue());
+		} catch (LDAPException e) {
+			Log.w(TAG, "Ignoring undecodable sync state control on " + entry.getDN(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the entryUUID the server attached to a content sync result, or
+	 * null for entries returned by a normal search.
+	 */
+	public static UUID getSyncUUID(SearchResultEntry entry) {
+		ContentSyncStateControl syncState = getSyncStateControl(entry);
+		return syncState == null ? null : syncState.getEntryUUID();
+	}
+
+	/**
+	 * Content sync needs a cookie per search, and only one is kept, so it's
+	 * only used for accounts with a single search base.
+	 */
+	public boolean useContentSync() throws LDAPException {
+		if (!SYNC_CONTENT.equals(mSyncMode))
+			return false;
+		if (mSearchBases.size() > 1) {
+			Log.w(TAG, "Content sync doesn't support multiple search bases, using modifyTimestamp instead");
+			return false;
+		}
+		if (!supportsControl(ContentSyncRequestControl.SYNC_REQUEST_OID)) {
+			Log.w(TAG, "Server doesn't support content sync, using modifyTimestamp instead");
+			return false;
+		}
+		return true;
+	}
+
+	public long getFullSyncIntervalMillis() {
+		return mFullSyncIntervalHours * 60L * 60L * 1000L;
 	}
 
 	public String getRootDN() throws LDAPException {
-		RootDSE root = mConnection.getRootDSE();
-		return root.getNamingContextDNs()[0];
+		if (mStandIn != null)
+			return mStandIn.getRootDN();
+		return getServerInfo().getRootDN();
+	}
+
+	/**
+	 * Tells whether the server's root DSE lists the given control, without
+	 * a round-trip unless the saved copy is missing or very old.
+	 */
+	public boolean supportsControl(String oid) throws LDAPException {
+		if (mStandIn != null)
+			return mStandIn.supportsControl(oid);
+		return getServerInfo().supportsControl(oid);
+	}
+
+	private String serverKey() {
+		return mHost + ":" + mPort + "|" + mBindDN; // access controls can hide parts of the root DSE
+	}
+
+	/**
+	 * Returns what's known about the server, reading the root DSE only if
+	 * nothing recent enough is cached.  A copy that's merely getting old is
+	 * used as it is and refreshed in the background.
+	 */
+	private ServerInfo getServerInfo() throws LDAPException {
+		String server = serverKey();
+		ServerInfo info = ServerInfo.getCached(server);
+		if (info == null && mAccount != null) {
+			info = ServerInfo.load(mAccountManager, mAccount, server);
+			if (info != null) ServerInfo.putCached(server, info);
+		}
+		if (info == null || info.getAge() > ServerInfo.MAX_AGE_MILLIS) {
+			info = ServerInfo.fetch(mConnection);
+			storeServerInfo(server, info);
+		} else if (info.getAge() > ServerInfo.REFRESH_AGE_MILLIS) {
+			refreshServerInfo(server);
+		}
+		return info;
+	}
+
+	private void storeServerInfo(String server, ServerInfo info) {
+		ServerInfo.putCached(server, info);
+		if (mAccount != null)
+			info.save(mAccountManager, mAccount, server);
+	}
+
+	private void refreshServerInfo(final String server) {
+		if (!ServerInfo.startRefresh(server))
+			return;
+		new Thread("Root DSE refresh") {
+			@Override
+			public void run() {
+				LDAPConnection connection = null;
+				try {
+					connection = openConnection();
+					storeServerInfo(server, ServerInfo.fetch(connection));
+				} catch (LDAPException e) {
+					Log.w(TAG, "Could not refresh root DSE, keeping the old copy", e);
+				} finally {
+					if (connection != null)
+						ConnectionManager.release(connection);
+					ServerInfo.endRefresh(server);
+				}
+			}
+		}.start();
 	}
 	
-	public int test() throws LDAPException
+	/**
+	 * What a connection test found.  Times are in milliseconds.
+	 */
+	public static class TestResult {
+		/** Opening the TCP connection */
+		public long connectMillis;
+		/** The TLS handshake, for SSL or StartTLS */
+		public long tlsMillis;
+		public long bindMillis;
+		public long searchMillis;
+		/** Contacts the probe searches returned, at most TEST_PROBE_SIZE per base */
+		public int entryCount;
+		/** False if there are more contacts than the probes returned */
+		public boolean complete = true;
+		/** The server's estimate of how many contacts there are, or 0 if it gave none */
+		public int estimatedCount;
+	}
+
+	/**
+	 * Checks the settings without a sync's worth of traffic: connects on a
+	 * fresh connection of its own (so the timings mean something), does
+	 * TLS, binds, and then runs a size-limited search for each base which
+	 * returns no attributes.  Every step gives up after TEST_TIMEOUT_MILLIS.
+	 */
+	public TestResult test() throws LDAPException
 	{
-		final int[] resultCount = new int[]{0}; // wrap in array so inner SearchResultListener can update
-		connect();
+		TestResult result = new TestResult();
+		LDAPConnectionOptions options = new LDAPConnectionOptions();
+		options.setConnectTimeoutMillis(TEST_TIMEOUT_MILLIS);
+		options.setResponseTimeoutMillis(TEST_TIMEOUT_MILLIS);
+		long handshakeMillis = SSLContextCache.getHandshakeMillis();
+		long start = SystemClock.elapsedRealtime();
 		try {
-			search(new SearchResultListener() {
-				private static final long serialVersionUID = 1L;
-				public void searchReferenceReturned(SearchResultReference ref) {
-					Log.i(TAG, "Found reference " + ref.getReferralURLs());
-				}
-				public void searchEntryReturned(SearchResultEntry entry) {
-					Log.i(TAG, "Found " + entry.getDN());
-					resultCount[0]++;
-				}
-			});
+			try {
+				mConnection = new LDAPConnection(mUseSSL ?
+						SSLContextCache.getSocketFactory(mHost, mPort, mTrustAnyCert) : SocketFactory.getDefault(), options);
+				mConnection.connect(mHost, mPort, TEST_TIMEOUT_MILLIS);
+				if (mUseTLS)
+					SSLContextCache.getStartTLSProcessor(mHost, mPort, mTrustAnyCert).processPreAuthenticatedConnection(mConnection);
+			} catch (GeneralSecurityException e) {
+				throw new LDAPException(ResultCode.LOCAL_ERROR, "Can't set up SSL for connection", e);
+			}
+			long secured = SystemClock.elapsedRealtime();
+			result.tlsMillis = SSLContextCache.getHandshakeMillis() - handshakeMillis;
+			result.connectMillis = secured - start - result.tlsMillis; // LDAPS handshakes while connecting
+			if (mBindDN.length() > 0)
+				mConnection.bind(mBindDN, mPassword);
+			long bound = SystemClock.elapsedRealtime();
+			result.bindMillis = bound - secured;
+			for (SearchBase base: getSearchBases())
+				probe(base, result);
+			result.searchMillis = SystemClock.elapsedRealtime() - bound;
 		} finally {
-			close();
+			close(); // not pooled, so this disconnects
+		}
+		return result;
+	}
+
+	private void probe(SearchBase base, TestResult result) throws LDAPException {
+		SearchRequest request = new SearchRequest(base.dn, SearchScope.SUB, contactFilter(base), SearchRequest.NO_ATTRIBUTES);
+		request.setSizeLimit(TEST_PROBE_SIZE);
+		request.setTimeLimitSeconds(TEST_TIMEOUT_MILLIS / 1000);
+		if (supportsControl(SimplePagedResultsControl.PAGED_RESULTS_OID))
+			request.addControl(new SimplePagedResultsControl(TEST_PROBE_SIZE)); // for the size estimate
+		SearchResult sr;
+		try {
+			sr = search(mConnection, request);
+		} catch (LDAPSearchException e) {
+			if (e.getResultCode() != ResultCode.SIZE_LIMIT_EXCEEDED && e.getResultCode() != ResultCode.TIME_LIMIT_EXCEEDED)
+				throw e;
+			result.entryCount += e.getEntryCount();
+			result.complete = false;
+			return;
+		}
+		if (sr.getResultCode() != ResultCode.SUCCESS) {
+			throw new LDAPException(sr);
+		}
+		result.entryCount += sr.getEntryCount();
+		SimplePagedResultsControl paged = getPagedResultsControl(sr);
+		if (paged != null) {
+			if (paged.moreResultsToReturn()) result.complete = false;
+			result.estimatedCount += paged.getSize();
 		}
-		return resultCount[0];
 	}
 	
 	public void close() {
-		if (mConnection != null) mConnection.close();
+		if (mConnection != null) ConnectionManager.release(mConnection);
+		mConnection = null;
 	}	
 }
\ No newline at end of file
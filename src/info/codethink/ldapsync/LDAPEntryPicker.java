@@ -1,6 +1,9 @@
 package info.codethink.ldapsync;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -11,12 +14,16 @@ import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.ldap.sdk.DN;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.RDN;
@@ -33,11 +40,17 @@ public class LDAPEntryPicker extends ListActivity {
 
 	private static final int RESULT_PICK_AGAIN = RESULT_FIRST_USER;
 
+	private static final int LIST_LIMIT = 500; // entries with more children are shown a window at a time
+	private static final int WINDOW_SIZE = 100;
+	private static final int MAX_WINDOWS = 5;
+	private static final int MAX_PAGED_ROWS = 5000;
+
 	Bundle mSettings;
 	String mDN;
 	private RetrieveEntriesTask mTask;
 	private ArrayList<String> mEntries;
-	private ArrayAdapter<String> mAdapter;
+	private BaseAdapter mAdapter;
+	private WindowedAdapter mWindowedAdapter;
 	private boolean mHasParent;
 	
 	@Override
@@ -86,9 +99,12 @@ public class LDAPEntryPicker extends ListActivity {
 	protected void onListItemClick(ListView l, View v, int position, long id) {
 		super.onListItemClick(l, v, position, id);
 
+			String child = (String)mAdapter.getItem(position);
+			if (child == null)
+				return; // not loaded yet
 			Log.v(TAG, "Invoking child picker");
 			try {
-				RDN rdn = new RDN(mAdapter.getItem(position));
+				RDN rdn = new RDN(child);
 				DN childDN = new DN(rdn, new DN(mDN));
 				pickFromDN(childDN.toString(), true);
 			} catch (LDAPException e) {
@@ -147,11 +163,41 @@ public class LDAPEntryPicker extends ListActivity {
 	}
 
 	private void retrieveChildren() {
+		List<String> cached = DirectoryCache.get(mSettings, mDN);
+		if (cached != null) {
+			Log.v(TAG, "Using cached children of " + mDN);
+			showChildren(cached);
+			return;
+		}
 		mTask = new RetrieveEntriesTask();
 		mTask.execute(mSettings, mDN);
 		// TODO: show loading indicator
 	}
 
+	private static ArrayList<String> toRDNs(List<String> dns) {
+		ArrayList<String> rdns = new ArrayList<String>(dns.size());
+		for (String dn: dns) {
+			try {
+				rdns.add(new DN(dn).getRDNString());
+			} catch (LDAPException e) {
+				Log.d(TAG, "Skipping child with unparseable DN " + dn, e);
+			}
+		}
+		return rdns;
+	}
+
+	private void showChildren(List<String> childDNs) {
+		mEntries = toRDNs(childDNs);
+		fillAdapter();
+
+		ArrayList<String> prefetch = new ArrayList<String>(childDNs.size() + 1);
+		String parentDN = getParentDN();
+		if (!mHasParent && parentDN != null)
+			prefetch.add(parentDN); // "up" opens a new picker rather than going back
+		prefetch.addAll(childDNs);
+		DirectoryCache.prefetch(mSettings, prefetch);
+	}
+
 	@Override
 	protected void onSaveInstanceState(Bundle outState) {
 		super.onSaveInstanceState(outState);
@@ -162,6 +208,8 @@ public class LDAPEntryPicker extends ListActivity {
 	protected void onDestroy() {
 		if (mTask != null && mTask.mFailureMessage == null)
 			mTask.cancel(true);
+		if (mWindowedAdapter != null)
+			mWindowedAdapter.close();
 		super.onDestroy();
 	}
 	
@@ -186,8 +234,12 @@ public class LDAPEntryPicker extends ListActivity {
 		super.onPrepareDialog(id, dialog);
 	}
 
+	/**
+	 * Fetches the DNs of an entry's children and caches them.
+	 */
 	private class RetrieveEntriesTask extends AsyncTask<Object, Void, ArrayList<String>> {
 		String mFailureMessage;
+		WindowedAdapter mWindowed; // set instead of returning the children if there are too many
 
 		@Override
 		protected ArrayList<String> doInBackground(Object... params) {
@@ -206,19 +258,21 @@ public class LDAPEntryPicker extends ListActivity {
 				if (searchDN.length() == 0) searchDN = src.getRootDN();
 
 				ArrayList<String> children = new ArrayList<String>();
-				src.browse(searchDN, children);
+				if (!src.browse(searchDN, children, LIST_LIMIT)) {
+					Log.v(TAG, "RetrieveEntriesTask found more than " + LIST_LIMIT + " entries, showing them a window at a time");
+					mWindowed = openWindowedAdapter(src, searchDN);
+					return children;
+				}
 				Log.v(TAG, "RetrieveEntriesTask returning " + children.size() + " entries...");
-				
-				for (int i = 0; i < children.size(); i++)
-					children.set(i, new DN(children.get(i)).getRDNString());
-				
+				DirectoryCache.put((Bundle)params[0], (String)params[1], children);
 				return children;
 			} catch (LDAPException e) {
 				Log.d(TAG, "Browser LDAP search failed", e);
 				mFailureMessage = "Could not find entries in " + mDN + ": " + e.getLocalizedMessage();
 				return null;
 			} finally {
-				src.close();
+				if (mWindowed == null)
+					src.close(); // otherwise the adapter keeps it
 			}
 		}
 		@Override
@@ -230,8 +284,240 @@ public class LDAPEntryPicker extends ListActivity {
 				return;
 			}
 			mTask = null;
-			mEntries = result;
-			fillAdapter();
+			if (mWindowed != null) {
+				mWindowedAdapter = mWindowed;
+				mAdapter = mWindowed;
+				setListAdapter(mAdapter);
+			} else {
+				showChildren(result);
+			}
+		}
+		@Override
+		protected void onCancelled() {
+			super.onCancelled();
+			if (mWindowed != null)
+				mWindowed.close();
+		}
+	}
+
+	/**
+	 * Sets up a windowed list of a big entry's children on the given source,
+	 * with the first window already loaded.  Virtual list views are used if
+	 * the server has them; otherwise the children are paged through in the
+	 * server's order.
+	 */
+	private WindowedAdapter openWindowedAdapter(LDAPContactSource src, String dn) throws LDAPException {
+		if (src.supportsWindowedBrowse()) {
+			String sortAttribute = src.getChildNamingAttribute(dn);
+			if (sortAttribute != null) {
+				ListViewAdapter adapter = new ListViewAdapter(src, dn, sortAttribute);
+				try {
+					LDAPContactSource.ChildWindow first = adapter.fetch(0);
+					if (first.total >= 0) {
+						adapter.store(0, first);
+						return adapter;
+					}
+					Log.d(TAG, "Server ignored the virtual list view request, paging instead");
+				} catch (LDAPException e) {
+					Log.d(TAG, "Virtual list view of " + dn + " failed, paging instead", e);
+				}
+			}
+		}
+		PagedAdapter adapter = new PagedAdapter(src, dn);
+		adapter.store(0, adapter.fetch(0));
+		return adapter;
+	}
+
+	/**
+	 * Lists the children of an entry with too many to fetch at once.  Rows
+	 * are fetched a window at a time, on the adapter's own connection, as
+	 * they come into view; only one fetch runs at a time, and if the user
+	 * scrolls on meanwhile only the latest window they asked for is fetched
+	 * next.
+	 */
+	private abstract class WindowedAdapter extends BaseAdapter {
+		final LDAPContactSource mSource;
+		final String mSearchDN;
+		private int mFetching = -1;
+		private int mWanted = -1;
+		private boolean mClosed;
+
+		WindowedAdapter(LDAPContactSource source, String searchDN) {
+			mSource = source;
+			mSearchDN = searchDN;
+		}
+
+		/** Fetches a window of rows, on a background thread */
+		abstract LDAPContactSource.ChildWindow fetch(int window) throws LDAPException;
+
+		/** Keeps a fetched window, on the UI thread */
+		abstract void store(int window, LDAPContactSource.ChildWindow rows);
+
+		void request(int window) {
+			if (mClosed || window == mFetching)
+				return;
+			if (mFetching >= 0) {
+				mWanted = window;
+				return;
+			}
+			mFetching = window;
+			new FetchWindowTask(window).execute();
+		}
+
+		private void fetched(int window, LDAPContactSource.ChildWindow rows) {
+			mFetching = -1;
+			if (mClosed) {
+				mSource.close();
+				return;
+			}
+			if (rows != null) {
+				store(window, rows);
+				notifyDataSetChanged();
+			}
+			if (mWanted >= 0) {
+				int next = mWanted;
+				mWanted = -1;
+				request(next);
+			}
+		}
+
+		/**
+		 * Gives the connection back, once any fetch in progress is done.
+		 */
+		void close() {
+			if (mClosed)
+				return;
+			mClosed = true;
+			if (mFetching < 0)
+				mSource.close();
+		}
+
+		public long getItemId(int position) {
+			return position;
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			TextView view = (TextView)convertView;
+			if (view == null)
+				view = (TextView)LayoutInflater.from(LDAPEntryPicker.this).inflate(R.layout.pickerlistentry, parent, false);
+			String rdn = (String)getItem(position);
+			if (rdn == null)
+				view.setText(R.string.loadingentry);
+			else
+				view.setText(rdn);
+			return view;
+		}
+
+		private class FetchWindowTask extends AsyncTask<Void, Void, LDAPContactSource.ChildWindow> {
+			private final int mWindow;
+
+			FetchWindowTask(int window) {
+				mWindow = window;
+			}
+
+			@Override
+			protected LDAPContactSource.ChildWindow doInBackground(Void... paramsUnused) {
+				try {
+					return fetch(mWindow);
+				} catch (LDAPException e) {
+					Log.w(TAG, "Could not fetch entries " + mWindow * WINDOW_SIZE + " onwards of " + mSearchDN, e);
+					return null;
+				}
+			}
+			@Override
+			protected void onPostExecute(LDAPContactSource.ChildWindow result) {
+				fetched(mWindow, result);
+			}
+		}
+	}
+
+	/**
+	 * Windowed list sorted by the children's naming attribute, using a
+	 * virtual list view.  Only the MAX_WINDOWS most recently shown windows
+	 * are kept, so memory use doesn't depend on the number of children.
+	 */
+	private class ListViewAdapter extends WindowedAdapter {
+		private final String mSortAttribute;
+		private final LinkedHashMap<Integer, List<String>> mWindows =
+			new LinkedHashMap<Integer, List<String>>(MAX_WINDOWS + 1, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, List<String>> eldest) {
+					return size() > MAX_WINDOWS;
+				}
+			};
+		private int mTotal;
+		private volatile ASN1OctetString mContextID;
+
+		ListViewAdapter(LDAPContactSource source, String searchDN, String sortAttribute) {
+			super(source, searchDN);
+			mSortAttribute = sortAttribute;
+		}
+
+		@Override
+		LDAPContactSource.ChildWindow fetch(int window) throws LDAPException {
+			return mSource.browseWindow(mSearchDN, mSortAttribute, window * WINDOW_SIZE, WINDOW_SIZE, mContextID);
+		}
+
+		@Override
+		void store(int window, LDAPContactSource.ChildWindow rows) {
+			mWindows.put(window, toRDNs(rows.dns));
+			if (rows.total >= 0) mTotal = rows.total;
+			mContextID = rows.cookie;
+		}
+
+		public int getCount() {
+			return mTotal;
+		}
+
+		public Object getItem(int position) {
+			int window = position / WINDOW_SIZE;
+			List<String> rows = mWindows.get(window);
+			if (rows == null) {
+				request(window);
+				return null;
+			}
+			int i = position - window * WINDOW_SIZE;
+			return i < rows.size() ? rows.get(i) : null;
+		}
+	}
+
+	/**
+	 * Windowed list for servers without virtual list views, which pages
+	 * through the children in order as the user scrolls to the end.  Paged
+	 * results can't go back, so rows are kept once fetched, up to
+	 * MAX_PAGED_ROWS.
+	 */
+	private class PagedAdapter extends WindowedAdapter {
+		private final ArrayList<String> mRows = new ArrayList<String>();
+		private volatile ASN1OctetString mCookie;
+		private boolean mMore = true;
+
+		PagedAdapter(LDAPContactSource source, String searchDN) {
+			super(source, searchDN);
+		}
+
+		@Override
+		LDAPContactSource.ChildWindow fetch(int window) throws LDAPException {
+			return mSource.browsePage(mSearchDN, WINDOW_SIZE, mCookie);
+		}
+
+		@Override
+		void store(int window, LDAPContactSource.ChildWindow rows) {
+			mRows.addAll(toRDNs(rows.dns));
+			mCookie = rows.cookie;
+			mMore = rows.cookie != null && mRows.size() < MAX_PAGED_ROWS;
+		}
+
+		public int getCount() {
+			return mRows.size() + (mMore ? 1 : 0); // the last row stands in for the rest
+		}
+
+		public Object getItem(int position) {
+			if (position < mRows.size())
+				return mRows.get(position);
+			request(mRows.size() / WINDOW_SIZE);
+			return null;
 		}
 	}
 }
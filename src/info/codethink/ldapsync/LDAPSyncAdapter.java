@@ -1,9 +1,14 @@
 package info.codethink.ldapsync;
 
-import java.io.InputStream;
+import info.codethink.ldapsync.LDAPSyncMapping.StoredRow;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
 
 import android.accounts.Account;
+import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
@@ -11,22 +16,24 @@ import android.content.ContentProviderOperation.Builder;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
-import android.content.res.Resources;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
 
+import com.unboundid.ldap.sdk.Entry;
 import com.unboundid.ldap.sdk.LDAPException;
 import com.unboundid.ldap.sdk.ResultCode;
 import com.unboundid.ldap.sdk.SearchResultEntry;
-import com.unboundid.ldap.sdk.SearchResultListener;
 import com.unboundid.ldap.sdk.SearchResultReference;
 
 public class LDAPSyncAdapter extends AbstractThreadedSyncAdapter {
 	private final static String TAG = "LDAPSyncAdapter";
+	private final static int UPDATE_GROUP_SIZE = 25; // existing contacts whose data is read per query
+	private final static int SWEEP_GROUP_SIZE = 100; // stale contacts removed per delete operation
+	private final static long PHOTO_SCAN_INTERVAL_MILLIS = 7 * 24 * 60 * 60 * 1000L; // checking every contact's photo
 	
 	private final Context mContext;
 	
@@ -34,21 +41,91 @@ public class LDAPSyncAdapter extends AbstractThreadedSyncAdapter {
 		ContentProviderOperation.Builder newInsert();
 	}
 	
-	private class SyncSearchListener implements SearchResultListener {
+	private class SyncSearchListener implements LDAPContactSource.ContactListener {
 		private static final long serialVersionUID = 1L; // why is SearchResultListener serializable?
 		private final ContentProviderClient mProvider;
 		private final LDAPSyncMapping mMapping;
+		private final LDAPSyncMapping.Transformer mTransformer;
 		private final Account mAccount;
 		private final SyncResult mSyncResult;
-		private final ArrayList<ContentProviderOperation> mBatch;
+		private final LocalContactIndex mLocalContacts;
+		private final ContactsBatch mBatch;
+		private final SyncMetrics mMetrics;
+		private final ShadowStore mShadowStore;
+		private final ShadowStore.Writer mShadow;
+		private final ArrayList<SearchResultEntry> mPendingEntries;
+		private final long[] mPendingIds;
+		private final String[] mPendingDNs;
+		private final String[] mPendingFingerprints;
+		private final String[] mPendingSyncedFingerprints; // SYNC1, what the contact was last synced with
+		private final String[] mPendingUUIDs;
+		private final Entry[] mSyncedEntries; // the shadow copies of the pending entries, where there are any
+		private final long[] mUnsyncedIds; // pending contacts without a shadow copy, whose Data rows are read
+		private final ArrayList<String> mPhotoCandidates;
+		private final ArrayList<String> mPhotoTimestamps; // the candidates' modifyTimestamps, for SYNC4
+		private boolean mChangesOnly;
 
 		private SyncSearchListener(ContentProviderClient provider,
-				LDAPSyncMapping mapping, Account account, SyncResult syncResult) {
+				LDAPSyncMapping mapping, Account account, SyncResult syncResult,
+				LocalContactIndex localContacts, SyncMetrics metrics, ShadowStore shadowStore, ShadowStore.Writer shadow) {
 			this.mProvider = provider;
 			this.mMapping = mapping;
+			this.mTransformer = mapping.newTransformer();
 			this.mAccount = account;
 			this.mSyncResult = syncResult;
-			this.mBatch = new ArrayList<ContentProviderOperation>();
+			this.mLocalContacts = localContacts;
+			this.mBatch = new ContactsBatch(provider);
+			this.mBatch.setMetrics(metrics);
+			this.mBatch.startWriter();
+			this.mMetrics = metrics;
+			this.mShadowStore = shadowStore;
+			this.mShadow = shadow;
+			this.mPendingEntries = new ArrayList<SearchResultEntry>();
+			this.mPendingIds = new long[UPDATE_GROUP_SIZE];
+			this.mPendingDNs = new String[UPDATE_GROUP_SIZE];
+			this.mPendingFingerprints = new String[UPDATE_GROUP_SIZE];
+			this.mPendingSyncedFingerprints = new String[UPDATE_GROUP_SIZE];
+			this.mPendingUUIDs = new String[UPDATE_GROUP_SIZE];
+			this.mSyncedEntries = new Entry[UPDATE_GROUP_SIZE];
+			this.mUnsyncedIds = new long[UPDATE_GROUP_SIZE];
+			this.mPhotoCandidates = new ArrayList<String>();
+			this.mPhotoTimestamps = new ArrayList<String>();
+		}
+
+		/**
+		 * Tells the listener that the server only returns changed entries,
+		 * so any of them may have a new photo even if nothing else changed.
+		 * After a full search only the entries that are new, have changed or
+		 * whose modifyTimestamp differs from the one in SYNC4 are photo
+		 * candidates.
+		 */
+		public void setChangesOnly(boolean changesOnly) {
+			mChangesOnly = changesOnly;
+		}
+
+		public boolean isChangesOnly() {
+			return mChangesOnly;
+		}
+
+		/**
+		 * DNs of the entries whose photos need checking once the search is
+		 * done.
+		 */
+		public ArrayList<String> getPhotoCandidates() {
+			return mPhotoCandidates;
+		}
+
+		/**
+		 * The modifyTimestamp of each photo candidate, or null if the server
+		 * didn't return one.
+		 */
+		public ArrayList<String> getPhotoTimestamps() {
+			return mPhotoTimestamps;
+		}
+
+		public void clearPhotoCandidates() {
+			mPhotoCandidates.clear();
+			mPhotoTimestamps.clear();
 		}
 
 		// references unsupported, ignore
@@ -56,75 +133,247 @@ public class LDAPSyncAdapter extends AbstractThreadedSyncAdapter {
 
 		public void searchEntryReturned(SearchResultEntry searchEntry) {
 			String dn = searchEntry.getDN();
-			String[] columns = new String[] { RawContacts._ID };
-			String conditions = RawContacts.ACCOUNT_TYPE + " = '" + LDAPAuthenticator.ACCOUNT_TYPE + "' AND " +
-				RawContacts.SOURCE_ID + " = ?";
-			final long rawContactId;
-			Log.v(TAG, "Syncing contact with DN " + dn);
-			try {
-				Cursor result = mProvider.query(RawContacts.CONTENT_URI, columns, conditions, new String[]{dn}, null);
-				try {
-					if (result.moveToFirst())
-						rawContactId = result.getLong(0);
-					else
-						rawContactId = -1;
-				} finally {
-					result.close();
+			if (Log.isLoggable(TAG, Log.VERBOSE))
+				Log.v(TAG, "Syncing contact with DN " + dn);
+			int slot = mLocalContacts.find(dn);
+			mMetrics.localLookup(slot != LocalContactIndex.NOT_FOUND);
+			final long rawContactId = slot == LocalContactIndex.NOT_FOUND ? -1 : mLocalContacts.getRawContactId(slot);
+			if (slot != LocalContactIndex.NOT_FOUND)
+				mLocalContacts.markSeen(slot);
+			String fingerprint = mTransformer.fingerprint(searchEntry);
+			UUID uuid = LDAPContactSource.getSyncUUID(searchEntry);
+			String uuidString = uuid == null ? null : uuid.toString();
+			boolean unchanged = rawContactId != -1 && fingerprint.equals(mLocalContacts.getSync1(slot))
+					&& (uuidString == null || uuidString.equals(mLocalContacts.getSync2(slot)));
+			String modified = searchEntry.getAttributeValue(LDAPContactSource.ATTR_MODIFY_TIMESTAMP);
+			if (mChangesOnly || !unchanged || (modified != null && !modified.equals(mLocalContacts.getSync4(slot)))) {
+				mPhotoCandidates.add(dn);
+				mPhotoTimestamps.add(modified);
+			}
+			if (unchanged) {
+				Log.v(TAG, "Entry unchanged since last sync");
+				if (!mShadow.isStored(dn, fingerprint)) {
+					mShadow.store(searchEntry, fingerprint);
+					if (mShadow.isFull())
+						applyBatch(); // nothing else may fill the batch for a while
 				}
-			} catch (RemoteException e) {
-				mSyncResult.databaseError = true;
-				mSyncResult.stats.numSkippedEntries++;
-				Log.i(TAG, "query for local contact failed", e);
 				return;
 			}
 			if (rawContactId == -1) {
 				ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(Utils.syncURI(RawContacts.CONTENT_URI));
+				ContactsBatch.yieldPoint(builder);
 				builder.withValue(RawContacts.ACCOUNT_NAME, mAccount.name);
 				builder.withValue(RawContacts.ACCOUNT_TYPE, mAccount.type);
 				builder.withValue(RawContacts.SOURCE_ID, dn);
+				builder.withValue(RawContacts.SYNC1, fingerprint);
+				if (uuidString != null)
+					builder.withValue(RawContacts.SYNC2, uuidString);
 				mBatch.add(builder.build());
 				final int rawContactRef = mBatch.size() - 1;
-				mMapping.buildData(mBatch, searchEntry, new BuilderBuilder() {
+				long mappingStart = mMetrics.mappingStarted();
+				mTransformer.buildData(mBatch, searchEntry, new BuilderBuilder() {
 					public Builder newInsert() {
 						Builder result = ContentProviderOperation.newInsert(Utils.syncURI(Data.CONTENT_URI)); 
 						result.withValueBackReference(Data.RAW_CONTACT_ID, rawContactRef);
 						return result;
 					}
 				});
+				mMetrics.entryMapped(mappingStart, mBatch.size() - rawContactRef);
+				mShadow.store(searchEntry, fingerprint);
 				mSyncResult.stats.numInserts++;
 			} else {
-				// drop all data from existing row and replace
-				ContentProviderOperation.Builder builder = ContentProviderOperation.newDelete(Utils.syncURI(Data.CONTENT_URI));
-				builder.withSelection(Data.RAW_CONTACT_ID + " = ?", new String[]{""+rawContactId});
+				// existing contacts are diffed against their stored rows in groups
+				mPendingEntries.add(searchEntry);
+				mPendingIds[mPendingEntries.size() - 1] = rawContactId;
+				mPendingDNs[mPendingEntries.size() - 1] = dn;
+				mPendingFingerprints[mPendingEntries.size() - 1] = fingerprint;
+				mPendingSyncedFingerprints[mPendingEntries.size() - 1] = mLocalContacts.getSync1(slot);
+				mPendingUUIDs[mPendingEntries.size() - 1] = uuidString;
+				if (mPendingEntries.size() == mPendingIds.length)
+					flushPendingUpdates();
+			}
+			
+			if (mBatch.isFull()) {
+				applyChanges();
+			}
+		}
+
+		public void entryDeleted(String dn, UUID uuid) {
+			int slot = dn == null ? LocalContactIndex.NOT_FOUND : mLocalContacts.find(dn);
+			if (slot == LocalContactIndex.NOT_FOUND && uuid != null)
+				slot = mLocalContacts.findByUUID(uuid.toString());
+			if (slot == LocalContactIndex.NOT_FOUND) {
+				Log.v(TAG, "Entry " + (dn == null ? uuid : dn) + " was deleted but isn't stored locally");
+				return;
+			}
+			Log.v(TAG, "Deleting contact for removed entry " + (dn == null ? uuid : dn));
+			mLocalContacts.markSeen(slot); // already handled, keep it out of the sweep
+			mShadow.delete(mLocalContacts.getDN(slot));
+			Builder builder = ContentProviderOperation.newDelete(Utils.syncURI(RawContacts.CONTENT_URI));
+			ContactsBatch.yieldPoint(builder);
+			builder.withSelection(RawContacts._ID + " = ?", new String[]{""+mLocalContacts.getRawContactId(slot)});
+			mBatch.add(builder.build());
+			mSyncResult.stats.numDeletes++;
+
+			if (mBatch.isFull()) {
+				applyChanges();
+			}
+		}
+
+		public void entryPresent(String dn, UUID uuid) {
+			// unchanged since the last content sync, just keep it from being swept
+			int slot = dn == null ? LocalContactIndex.NOT_FOUND : mLocalContacts.find(dn);
+			if (slot == LocalContactIndex.NOT_FOUND && uuid != null)
+				slot = mLocalContacts.findByUUID(uuid.toString());
+			if (slot != LocalContactIndex.NOT_FOUND)
+				mLocalContacts.markSeen(slot);
+		}
+
+		public void pageCompleted() {
+			// keep the batch from spanning pages so memory use stays bounded
+			applyChanges();
+		}
+
+		/**
+		 * Deletes every local contact the server didn't mention.  Only call
+		 * this after a search that covered the whole directory completed
+		 * successfully, or contacts will be deleted by mistake.
+		 */
+		public void sweep() {
+			StringBuilder ids = new StringBuilder();
+			int count = 0;
+			for (int slot = mLocalContacts.nextUnseen(0); slot != LocalContactIndex.NOT_FOUND;
+					slot = mLocalContacts.nextUnseen(slot + 1)) {
+				if (count > 0) ids.append(',');
+				ids.append(mLocalContacts.getRawContactId(slot));
+				mShadow.delete(mLocalContacts.getDN(slot));
+				count++;
+				mSyncResult.stats.numDeletes++;
+				if (count == SWEEP_GROUP_SIZE) {
+					addSweepDelete(ids.toString());
+					ids.setLength(0);
+					count = 0;
+				}
+			}
+			if (count > 0)
+				addSweepDelete(ids.toString());
+			applyChanges();
+		}
+
+		private void addSweepDelete(String rawContactIds) {
+			Log.v(TAG, "Deleting contacts no longer in the directory: " + rawContactIds);
+			Builder builder = ContentProviderOperation.newDelete(Utils.syncURI(RawContacts.CONTENT_URI));
+			ContactsBatch.yieldPoint(builder);
+			builder.withSelection(RawContacts._ID + " IN (" + rawContactIds + ")", null);
+			mBatch.add(builder.build(), rawContactIds.length() * 2);
+			if (mBatch.isFull()) {
+				applyChanges();
+			}
+		}
+
+		private void flushPendingUpdates() {
+			if (mPendingEntries.isEmpty())
+				return;
+			// diff against the entries the contacts were last synced from where
+			// they're stored, and against the contacts' Data rows where not
+			int count = mPendingEntries.size();
+			mShadowStore.getEntries(mAccount, mPendingDNs, mPendingSyncedFingerprints, count, mSyncedEntries);
+			int unsynced = 0;
+			for (int i = 0; i < count; i++) {
+				if (mSyncedEntries[i] == null)
+					mUnsyncedIds[unsynced++] = mPendingIds[i];
+			}
+			HashMap<Long, ArrayList<StoredRow>> storedRows = new HashMap<Long, ArrayList<StoredRow>>();
+			try {
+				if (unsynced > 0)
+					mMapping.readData(mProvider, mUnsyncedIds, unsynced, storedRows);
+			} catch (RemoteException e) {
+				mSyncResult.databaseError = true;
+				mSyncResult.stats.numSkippedEntries += mPendingEntries.size();
+				Log.i(TAG, "query for local contact data failed", e);
+				mPendingEntries.clear();
+				return;
+			}
+			for (int i = 0; i < mPendingEntries.size(); i++) {
+				final long rawContactId = mPendingIds[i];
+				// the raw contact goes first so the yield point is at the contact boundary
+				Builder builder = ContentProviderOperation.newUpdate(Utils.syncURI(RawContacts.CONTENT_URI));
+				ContactsBatch.yieldPoint(builder);
+				builder.withSelection(RawContacts._ID + " = ?", new String[]{""+rawContactId});
+				builder.withValue(RawContacts.SYNC1, mPendingFingerprints[i]);
+				if (mPendingUUIDs[i] != null)
+					builder.withValue(RawContacts.SYNC2, mPendingUUIDs[i]);
 				mBatch.add(builder.build());
-				mMapping.buildData(mBatch, searchEntry, new BuilderBuilder() {
+				long mappingStart = mMetrics.mappingStarted();
+				BuilderBuilder bb = new BuilderBuilder() {
 					public Builder newInsert() {
 						Builder result = ContentProviderOperation.newInsert(Utils.syncURI(Data.CONTENT_URI)); 
 						result.withValue(Data.RAW_CONTACT_ID, rawContactId);
 						return result;
 					}
-				});
-				mSyncResult.stats.numUpdates++;
-			}
-			
-			if (mBatch.size() >= 50) {
-				applyChanges();
+				};
+				int opCount;
+				if (mSyncedEntries[i] != null)
+					opCount = mTransformer.buildUpdate(mBatch, mPendingEntries.get(i), mSyncedEntries[i], rawContactId, bb);
+				else
+					opCount = mTransformer.buildUpdate(mBatch, mPendingEntries.get(i), storedRows.get(rawContactId), bb);
+				mMetrics.entryMapped(mappingStart, opCount + 1);
+				mShadow.store(mPendingEntries.get(i), mPendingFingerprints[i]);
+				if (opCount > 0)
+					mSyncResult.stats.numUpdates++;
+				if (mBatch.isFull())
+					applyBatch();
 			}
+			mPendingEntries.clear();
+			Arrays.fill(mSyncedEntries, null);
 		}
 
 		public void applyChanges() {
+			flushPendingUpdates();
+			applyBatch();
+		}
+
+		private void applyBatch() {
+			// the shadow copies are written by the batch writer, once their contacts are
+			Runnable shadowWrites = mShadow.takeWrites();
+			if (shadowWrites != null)
+				mBatch.runAfterApply(shadowWrites);
+			try {
+				mBatch.apply();
+			} catch (RemoteException e) {
+				Log.e(TAG, "Could not sync contacts", e);
+				mSyncResult.databaseError = true;
+			} catch (OperationApplicationException e) {
+				Log.e(TAG, "Could not sync contact", e);
+				mSyncResult.databaseError = true;
+			}
+		}
+
+		/**
+		 * Waits for everything handed to the batch writer to be written.
+		 */
+		public void finishWrites() {
+			Runnable shadowWrites = mShadow.takeWrites();
+			if (shadowWrites != null)
+				mBatch.runAfterApply(shadowWrites);
 			try {
-				Log.v(TAG, "Applying " + mBatch.size() + " operations to contacts DB...");
-				mProvider.applyBatch(mBatch);
-				mBatch.clear();
+				mBatch.finish();
 			} catch (RemoteException e) {
 				Log.e(TAG, "Could not sync contacts", e);
 				mSyncResult.databaseError = true;
 			} catch (OperationApplicationException e) {
 				Log.e(TAG, "Could not sync contact", e);
 				mSyncResult.databaseError = true;
+			} catch (RuntimeException e) {
+				// also called from onPerformSync's finally, so nothing may escape
+				Log.e(TAG, "Could not sync contacts", e);
+				mSyncResult.databaseError = true;
 			}
 		}
+
+		public ContactsBatch getBatch() {
+			return mBatch;
+		}
 	}
 	
 	public LDAPSyncAdapter(Context ctx)
@@ -133,6 +382,14 @@ public class LDAPSyncAdapter extends AbstractThreadedSyncAdapter {
 		
 		mContext = ctx;
 	}
+
+	/**
+	 * Where a sync gets its entries from; the tests override this to sync
+	 * from a stand-in directory.
+	 */
+	LDAPContactSource newContactSource(Account account) {
+		return new LDAPContactSource(mContext, account);
+	}
 	
 	@Override
 	public void onPerformSync(final Account account, Bundle extras, String authority,
@@ -146,22 +403,30 @@ public class LDAPSyncAdapter extends AbstractThreadedSyncAdapter {
 			throw new IllegalArgumentException("Can't sync authority " + authority);
 		
 		final LDAPSyncMapping mapping;
-		InputStream mappingXml = null;
 		try {
-			Resources r = mContext.getResources();
-			mappingXml = r.openRawResource(R.raw.basicmapping);
-			mapping = new LDAPSyncMapping(mappingXml);
+			mapping = LDAPSyncMapping.forResource(mContext.getResources(), R.raw.basicmapping);
 		} catch (Exception ex) {
 			Log.e(TAG, "Could not load mapping config", ex);
 			syncResult.databaseError = true;
 			// TODO: log errors somewhere where the UI can get at them
 			return;
-		} finally {
-			if (mappingXml != null)
-				try { mappingXml.close(); } catch (Exception e) {}
 		}
 
-		LDAPContactSource src = new LDAPContactSource(mContext, account);
+		final LocalContactIndex localContacts;
+		try {
+			localContacts = LocalContactIndex.load(provider, account);
+		} catch (RemoteException e) {
+			Log.e(TAG, "Could not load local contacts for sync", e);
+			syncResult.databaseError = true;
+			return;
+		}
+
+		AccountManager mgr = AccountManager.get(mContext);
+		SyncMetrics metrics = new SyncMetrics();
+		LDAPContactSource src = newContactSource(account);
+		src.setMetrics(metrics);
+		if (!src.keepUnmappedAttributes())
+			src.setRequestedAttributes(mapping.getLDAPAttributes());
 		try {
 			src.connect();
 		} catch (LDAPException e) {
@@ -171,14 +436,87 @@ public class LDAPSyncAdapter extends AbstractThreadedSyncAdapter {
 			} else {
 				syncResult.stats.numIoExceptions++;
 			}
+			metrics.save(mgr, account, syncResult);
 			return;
 		}
 		
+		SyncState state = SyncState.load(mgr, account);
+		ShadowStore shadowStore = ShadowStore.get(mContext);
+		SyncSearchListener listener = new SyncSearchListener(provider, mapping, account, syncResult, localContacts, metrics,
+				shadowStore, shadowStore.newWriter(account, mapping));
+		// entries are transformed on the queue's thread and written on the batch's, while this one reads
+		QueuedContactListener queue = new QueuedContactListener(listener);
   		try {
-  			SyncSearchListener listener = new SyncSearchListener(provider, mapping, account, syncResult);
-			src.search(listener);
+			boolean contentSynced = false;
+			boolean fullRefresh = false;
+			if (src.useContentSync()) {
+				listener.setChangesOnly(state.mCookie != null);
+				metrics.searchStarted("content sync");
+				try {
+					fullRefresh = src.contentSync(queue, state);
+					contentSynced = true;
+				} catch (LDAPException e) {
+					if (e.getResultCode() != ResultCode.UNAVAILABLE_CRITICAL_EXTENSION) throw e;
+					Log.w(TAG, "Server doesn't support content sync, using modifyTimestamp instead", e);
+					queue.drain();
+					listener.clearPhotoCandidates();
+				}
+			}
+			boolean incremental = state.canSyncIncrementally(src.getFullSyncIntervalMillis());
+			boolean searchComplete = true;
+			if (!contentSynced) {
+				listener.setChangesOnly(incremental);
+				metrics.searchStarted(incremental ? "incremental search" : "full search");
+				try {
+					searchComplete = src.search(queue, state, incremental);
+				} catch (LDAPException e) {
+					if (!incremental) throw e;
+					Log.w(TAG, "Incremental search failed, falling back to full sync", e);
+					incremental = false;
+					queue.drain();
+					listener.clearPhotoCandidates();
+					listener.setChangesOnly(false);
+					metrics.searchStarted("full search");
+					searchComplete = src.search(queue, state, incremental);
+				}
+			}
+			metrics.searchFinished();
 			Log.v(TAG, "Search complete, applying remaining changes...");
+			queue.finish();
 			listener.applyChanges();
+			boolean complete = contentSynced ? fullRefresh : searchComplete && !incremental;
+			if (complete && !syncResult.databaseError) {
+				Log.v(TAG, "Removing contacts that are no longer in the directory...");
+				long sweepStart = SystemClock.elapsedRealtime();
+				listener.sweep();
+				metrics.sweepFinished(SystemClock.elapsedRealtime() - sweepStart);
+			}
+			listener.finishWrites();
+			if (!syncResult.databaseError && searchComplete) {
+				if (contentSynced)
+					state.contentSyncCompleted(fullRefresh);
+				else
+					state.searchCompleted(incremental);
+				state.save(mgr, account);
+			}
+			if (!syncResult.databaseError && mapping.getDeferredAttributes().length > 0) {
+				long photoStart = SystemClock.elapsedRealtime();
+				PhotoSync photos = new PhotoSync(provider, mapping, syncResult);
+				if (listener.isChangesOnly() || !state.needsPhotoScan(PHOTO_SCAN_INTERVAL_MILLIS)) {
+					Log.v(TAG, "Checking " + listener.getPhotoCandidates().size() + " contacts for new photos...");
+					photos.sync(src, listener.getPhotoCandidates(), listener.getPhotoTimestamps(),
+							LocalContactIndex.load(provider, account));
+				} else {
+					Log.v(TAG, "Checking every contact for new photos...");
+					if (photos.syncAll(src, listener.getPhotoCandidates(), listener.getPhotoTimestamps(),
+							LocalContactIndex.load(provider, account))) {
+						state.photoScanCompleted();
+						state.save(mgr, account);
+					}
+				}
+				metrics.photosFinished(SystemClock.elapsedRealtime() - photoStart);
+			}
+			Log.i(TAG, "Contacts DB writes: " + listener.getBatch());
 			Log.v(TAG, "...sync complete.");
 		} catch (LDAPException e)  {
 			Log.e(TAG, "LDAP search failed", e);
@@ -187,7 +525,15 @@ public class LDAPSyncAdapter extends AbstractThreadedSyncAdapter {
 			Log.e(TAG, "Unrecognized error occurred, aborting sync", e);
 			syncResult.databaseError = true;
 		} finally {
+			try {
+				queue.finish(); // does nothing if it already has
+			} catch (RuntimeException e) {
+				syncResult.databaseError = true;
+			}
+			listener.finishWrites();
 			src.close();
+			Log.i(TAG, metrics.report(syncResult));
+			metrics.save(mgr, account, syncResult);
 		}
 	}
 }
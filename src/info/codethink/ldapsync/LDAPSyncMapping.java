@@ -4,16 +4,21 @@ import info.codethink.ldapsync.LDAPSyncAdapter.BuilderBuilder;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
+import com.unboundid.asn1.ASN1OctetString;
 import com.unboundid.ldap.sdk.Attribute;
 import com.unboundid.ldap.sdk.Entry;
 import com.unboundid.ldap.sdk.SearchResultEntry;
@@ -21,6 +26,7 @@ import com.unboundid.ldap.sdk.SearchResultEntry;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderOperation.Builder;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.os.RemoteException;
 import android.provider.ContactsContract.CommonDataKinds;
@@ -43,6 +49,21 @@ class LDAPSyncMapping {
 	private static final String COLUMN_ATTRIB_INDEX = Data.DATA2;
 	private static final String COLUMN_ATTRIB_DATA = Data.DATA15;
 
+	// operational attributes fetched for sync bookkeeping, never stored on the contact
+	private static final String[] BOOKKEEPING_ATTRIBUTES = new String[] {
+		LDAPContactSource.ATTR_MODIFY_TIMESTAMP
+	};
+
+	private static final int OWNER_LDAP_ATTRIBUTE = -1;
+	private static final int OWNER_NONE = -2;
+
+	private static final String[] DATA_PROJECTION = new String[] {
+		Data._ID, Data.RAW_CONTACT_ID, Data.MIMETYPE,
+		Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA5,
+		Data.DATA6, Data.DATA7, Data.DATA8, Data.DATA9, Data.DATA10,
+		Data.DATA11, Data.DATA12, Data.DATA13, Data.DATA14, Data.DATA15
+	};
+
 	public static class Value {
 		public String columnName;
 		public boolean isLiteral;
@@ -63,6 +84,53 @@ class LDAPSyncMapping {
 		private String mMimeType;
 		private final ArrayList<LDAPSyncMapping.Value> mValues = new ArrayList<LDAPSyncMapping.Value>();
 
+		// flat copy of mValues made by compile(), which is all syncing looks at
+		private String[] mColumns;
+		private String[] mSources; // literal value or LDAP attribute name
+		private boolean[] mIsLiteral;
+		private boolean[] mIsBlob;
+		private int[] mSlots; // attribute slot each value is read from, see findSlot()
+		private boolean mDeferred;
+		private boolean mHasDynamic;
+		private String mOwnedSelection; // a raw contact's rows owned by this builder, see newOwnedDelete()
+
+		/**
+		 * Freezes the parsed fields into arrays.  Must be called once parsing
+		 * is finished and before the builder is used.
+		 */
+		private void compile() {
+			int n = mValues.size();
+			mColumns = new String[n];
+			mSources = new String[n];
+			mIsLiteral = new boolean[n];
+			mIsBlob = new boolean[n];
+			mSlots = new int[n];
+			for (int vi = 0; vi < n; vi++) {
+				Value val = mValues.get(vi);
+				mColumns[vi] = val.columnName;
+				mSources[vi] = val.value;
+				mIsLiteral[vi] = val.isLiteral;
+				mIsBlob[vi] = val.isBlob;
+				mDeferred |= val.isBlob;
+				mHasDynamic |= !val.isLiteral;
+			}
+			StringBuilder selection = new StringBuilder(Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ?");
+			for (int vi = 0; vi < n; vi++) {
+				if (mIsLiteral[vi])
+					selection.append(" AND ").append(mColumns[vi]).append(" = ?");
+			}
+			mOwnedSelection = selection.toString();
+			mType = null; // only needed while parsing
+		}
+
+		/**
+		 * Rows with blob values (photos) aren't written by the main sync;
+		 * PhotoSync fetches and writes them in a separate pass.
+		 */
+		public boolean isDeferred() {
+			return mDeferred;
+		}
+
 		public void setType(String type) throws ClassNotFoundException,
 				IllegalAccessException, NoSuchFieldException {
 			mType = Class.forName(CommonDataKinds.class.getName() + "$" + type);
@@ -88,56 +156,194 @@ class LDAPSyncMapping {
 			mValues.add(new Value(column, true, value, false));
 		}
 
-		public void buildInsert(ArrayList<ContentProviderOperation> ops, SearchResultEntry data, Set<String> mappedAttribs, BuilderBuilder bb) {
-			int numDynamicAttribs = 0; // TODO: make this a member boolean
+		/**
+		 * Works out the Data rows this builder wants for an entry, given the
+		 * entry's attributes indexed by attribute slot.  The rows are written
+		 * into the scratch list, each an array indexed like mColumns holding
+		 * a String, a byte[] or null, and the number of rows is returned.
+		 */
+		private int buildRows(Attribute[] attribs, ArrayList<Object[]> rows) {
+			int count = mHasDynamic ? 0 : 1;
+			for (int vi = 0; vi < mSlots.length; vi++) {
+				if (!mIsLiteral[vi] && attribs[mSlots[vi]] != null)
+					count = Math.max(count, attribs[mSlots[vi]].size());
+			}
+			while (rows.size() < count)
+				rows.add(new Object[mColumns.length]);
+
+			for (int i = 0; i < count; i++) {
+				Object[] row = rows.get(i);
+				for (int vi = 0; vi < mSlots.length; vi++)
+					row[vi] = mIsLiteral[vi] ? mSources[vi] : null;
+			}
+			for (int vi = 0; vi < mSlots.length; vi++) {
+				if (mIsLiteral[vi] || attribs[mSlots[vi]] == null) continue;
+				ASN1OctetString[] values = attribs[mSlots[vi]].getRawValues();
+				for (int i = 0; i < values.length; i++)
+					rows.get(i)[vi] = mIsBlob[vi] ? values[i].getValue() : values[i].stringValue();
+			}
+			return count;
+		}
+
+		/**
+		 * Sets the row's values on the builder and returns their estimated
+		 * parcelled size.
+		 */
+		private int withRowValues(Builder builder, Object[] row, boolean includeNulls) {
+			int size = 0;
+			for (int vi = 0; vi < mColumns.length; vi++) {
+				if (row[vi] == null && !includeNulls) continue;
+				builder.withValue(mColumns[vi], row[vi]);
+				size += ContactsBatch.sizeOf(mColumns[vi], row[vi]);
+			}
+			return size;
+		}
 
-			ArrayList<Builder> builders = new ArrayList<Builder>();
-			StringBuilder msg = new StringBuilder("Adding " + mMimeType + " records with ");
-			for (LDAPSyncMapping.Value val: mValues) {
-				if (val.isLiteral) continue;
-				numDynamicAttribs++;
-				if (!data.hasAttribute(val.value)) continue;
+		private void buildInsert(ContactsBatch ops, Attribute[] attribs,
+				ArrayList<Object[]> rows, BuilderBuilder bb) {
+			int count = buildRows(attribs, rows);
+			if (count == 0)
+				return;
 
-				mappedAttribs.add(val.value);
-				if (val.isBlob) {
-					byte[][] values = data.getAttributeValueByteArrays(val.value);
-					addBuilders(builders, values.length, bb);
-					for (int i = 0; i < values.length; i++) {
-						builders.get(i).withValue(val.columnName, values[i]);
-						msg.append(val.columnName + "[" + i + "] = <" + values[i].length + " bytes>, ");
-					}
-				} else {
-					String values[] = data.getAttributeValues(val.value);
-					addBuilders(builders, values.length, bb);
-					for (int i = 0; i < values.length; i++) {
-						builders.get(i).withValue(val.columnName, values[i]);
-						msg.append(val.columnName + "[" + i + "] =" + values[i] + ", ");
+			if (Log.isLoggable(TAG, Log.DEBUG)) {
+				StringBuilder msg = new StringBuilder("Adding " + mMimeType + " records with ");
+				for (int i = 0; i < count; i++) {
+					for (int vi = 0; vi < mColumns.length; vi++) {
+						Object v = rows.get(i)[vi];
+						if (mIsLiteral[vi] || v == null) continue;
+						if (mIsBlob[vi])
+							msg.append(mColumns[vi] + "[" + i + "] = <" + ((byte[])v).length + " bytes>, ");
+						else
+							msg.append(mColumns[vi] + "[" + i + "] =" + v + ", ");
 					}
 				}
+				Log.d(TAG, msg.toString());
 			}
-			
-			if (numDynamicAttribs == 0) addBuilders(builders, 1, bb);
-			
-			if (builders.isEmpty())
-				return;
-				
-			Log.d(TAG, msg.toString());
 
-			for (Builder builder: builders) {
-				// fill in literal values and MIME type
+			for (int i = 0; i < count; i++) {
+				Builder builder = bb.newInsert();
 				builder.withValue(Data.MIMETYPE, mMimeType);
-				for (Value val: mValues) {
-					if (!val.isLiteral) continue;
-					builder.withValue(val.columnName, val.value);
-				}
-				
-				ops.add(builder.build());
+				int size = withRowValues(builder, rows.get(i), false);
+				ops.add(builder.build(), size);
 			}
 		}
 
-		private void addBuilders(ArrayList<Builder> builders, int length, BuilderBuilder bb) {
-			while (builders.size() < length)
-				builders.add(bb.newInsert());
+		/**
+		 * Brings the stored rows owned by this builder in line with the entry,
+		 * updating rows in place where possible.  Returns the number of
+		 * operations added, which is zero when nothing changed.
+		 */
+		private int buildUpdate(ContactsBatch ops, Attribute[] attribs,
+				ArrayList<Object[]> rows, List<StoredRow> existing, BuilderBuilder bb) {
+			int count = buildRows(attribs, rows);
+
+			int opCount = 0;
+			int i = 0;
+			for (; i < count && i < existing.size(); i++) {
+				StoredRow old = existing.get(i);
+				if (rowEquals(rows.get(i), old.values)) continue;
+				if (Log.isLoggable(TAG, Log.DEBUG))
+					Log.d(TAG, "Updating " + mMimeType + " row " + old.id);
+				Builder builder = ContentProviderOperation.newUpdate(Utils.syncURI(Data.CONTENT_URI));
+				builder.withSelection(Data._ID + " = ?", new String[]{""+old.id});
+				int size = withRowValues(builder, rows.get(i), true);
+				ops.add(builder.build(), size);
+				opCount++;
+			}
+			for (int j = i; j < existing.size(); j++) {
+				ops.add(newDataDelete(existing.get(j).id));
+				opCount++;
+			}
+			for (int j = i; j < count; j++) {
+				Builder builder = bb.newInsert();
+				builder.withValue(Data.MIMETYPE, mMimeType);
+				int size = withRowValues(builder, rows.get(j), false);
+				ops.add(builder.build(), size);
+				opCount++;
+			}
+			return opCount;
+		}
+
+		/**
+		 * Like buildUpdate, but compares the rows the entry wants with the
+		 * ones built from the entry the contact was last synced from.  There
+		 * are no row ids to update by, so if anything changed, every row
+		 * this builder owns is deleted and the new ones inserted.
+		 */
+		private int buildReplace(ContactsBatch ops, Attribute[] attribs, ArrayList<Object[]> rows,
+				Attribute[] syncedAttribs, ArrayList<Object[]> syncedRows, long rawContactId, BuilderBuilder bb) {
+			int count = buildRows(attribs, rows);
+			int syncedCount = buildRows(syncedAttribs, syncedRows);
+			if (count == syncedCount) {
+				int i = 0;
+				while (i < count && rowEquals(rows.get(i), syncedRows.get(i))) i++;
+				if (i == count) return 0;
+			}
+			if (Log.isLoggable(TAG, Log.DEBUG))
+				Log.d(TAG, "Replacing " + mMimeType + " rows of raw contact " + rawContactId);
+			int opCount = 0;
+			if (syncedCount > 0) {
+				ops.add(newOwnedDelete(rawContactId));
+				opCount++;
+			}
+			for (int j = 0; j < count; j++) {
+				Builder builder = bb.newInsert();
+				builder.withValue(Data.MIMETYPE, mMimeType);
+				int size = withRowValues(builder, rows.get(j), false);
+				ops.add(builder.build(), size);
+				opCount++;
+			}
+			return opCount;
+		}
+
+		// deletes the raw contact's rows that owns() would say are this builder's
+		private ContentProviderOperation newOwnedDelete(long rawContactId) {
+			String[] args = new String[2 + mColumns.length];
+			int n = 0;
+			args[n++] = ""+rawContactId;
+			args[n++] = mMimeType;
+			for (int vi = 0; vi < mColumns.length; vi++) {
+				if (mIsLiteral[vi]) args[n++] = mSources[vi];
+			}
+			String[] selectionArgs = new String[n];
+			System.arraycopy(args, 0, selectionArgs, 0, n);
+			Builder builder = ContentProviderOperation.newDelete(Utils.syncURI(Data.CONTENT_URI));
+			builder.withSelection(mOwnedSelection, selectionArgs);
+			return builder.build();
+		}
+
+		private static boolean rowEquals(Object[] a, Object[] b) {
+			for (int vi = 0; vi < a.length; vi++) {
+				if (!valueEquals(a[vi], b[vi])) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Checks whether a Data row from the cursor was created by this
+		 * builder: same MIME type and same literal column values.
+		 */
+		private boolean owns(Cursor c, String mimeType) {
+			if (!mMimeType.equals(mimeType)) return false;
+			for (int vi = 0; vi < mColumns.length; vi++) {
+				if (!mIsLiteral[vi]) continue;
+				if (!mSources[vi].equals(c.getString(c.getColumnIndex(mColumns[vi])))) return false;
+			}
+			return true;
+		}
+
+		private Object[] readRow(Cursor c) {
+			Object[] row = new Object[mColumns.length];
+			for (int vi = 0; vi < mColumns.length; vi++) {
+				if (mIsLiteral[vi]) {
+					row[vi] = mSources[vi];
+					continue;
+				}
+				int col = c.getColumnIndex(mColumns[vi]);
+				if (c.isNull(col)) continue;
+				row[vi] = mIsBlob[vi] ? c.getBlob(col) : c.getString(col);
+			}
+			return row;
 		}
 
 		public void buildLDIFEntry(ContentProviderClient provider,
@@ -171,6 +377,55 @@ class LDAPSyncMapping {
 		}
 	}
 	
+	/**
+	 * A Data row already in the contacts DB, tagged with the RowBuilder that
+	 * owns it (or OWNER_LDAP_ATTRIBUTE/OWNER_NONE).
+	 */
+	public static class StoredRow {
+		public final long id;
+		public final int owner;
+		public final Object[] values;
+
+		public StoredRow(long id, int owner, Object[] values) {
+			this.id = id;
+			this.owner = owner;
+			this.values = values;
+		}
+	}
+
+	private static boolean valueEquals(Object a, Object b) {
+		if (a == null || b == null) return a == b;
+		if (a instanceof byte[] && b instanceof byte[]) return Arrays.equals((byte[])a, (byte[])b);
+		return a.equals(b);
+	}
+
+	/**
+	 * Returns the position of the stored row holding the given value of an
+	 * unmapped attribute, or -1.  Contacts have few of them, so a scan
+	 * beats building keys for a map.
+	 */
+	private static int findAttributeRow(List<StoredRow> rows, String name, int index) {
+		for (int k = 0; k < rows.size(); k++) {
+			StoredRow row = rows.get(k);
+			if (row != null && ((Integer)row.values[1]).intValue() == index && name.equals(row.values[0]))
+				return k;
+		}
+		return -1;
+	}
+
+	static boolean isBookkeepingAttribute(String name) {
+		for (String attr: BOOKKEEPING_ATTRIBUTES) {
+			if (attr.equalsIgnoreCase(name)) return true;
+		}
+		return false;
+	}
+
+	private static ContentProviderOperation newDataDelete(long dataId) {
+		Builder builder = ContentProviderOperation.newDelete(Utils.syncURI(Data.CONTENT_URI));
+		builder.withSelection(Data._ID + " = ?", new String[]{""+dataId});
+		return builder.build();
+	}
+
 	public static class ParseError extends Exception {
 		public ParseError(String message, Throwable cause) {super(message, cause);}
 		private static final long serialVersionUID = 1L;
@@ -179,6 +434,7 @@ class LDAPSyncMapping {
 	public static class Parser {
 		Throwable parseErrorCause = null;
 		String parseErrorMessage = null;
+		String mappingVersion = "0";
 		
 		private static class UncheckedParseError extends RuntimeException {
 			// this is used internally to get exceptions out of listeners
@@ -193,6 +449,13 @@ class LDAPSyncMapping {
 			final ArrayList<RowBuilder> rows = new ArrayList<RowBuilder>();
 
 			RootElement root = new RootElement("ldapsyncmapping");
+			root.setStartElementListener(new StartElementListener() {
+				public void start(Attributes attributes) {
+					String version = attributes.getValue("version");
+					Log.d(TAG, "<ldapsyncmapping version='" + version + "'>");
+					if (version != null) mappingVersion = version;
+				}
+			});
 			Element row = root.getChild("row");
 			row.setStartElementListener(new StartElementListener() {
 				public void start(Attributes attributes) {
@@ -256,33 +519,503 @@ class LDAPSyncMapping {
 		}
 	}
 	
-	List<RowBuilder> mRows;
+	// process-wide cache of compiled mappings, keyed by resource id
+	private static final HashMap<Integer, LDAPSyncMapping> sCache = new HashMap<Integer, LDAPSyncMapping>();
+
+	/**
+	 * Returns the mapping in the given raw resource, parsing it the first
+	 * time it's asked for.  Compiled mappings are never modified, so one
+	 * instance is shared by every sync and account.  Resources can't change
+	 * without the process being restarted, so the cache never needs
+	 * invalidating.
+	 */
+	public static LDAPSyncMapping forResource(Resources res, int resId) throws ParseError
+	{
+		synchronized (sCache) {
+			LDAPSyncMapping mapping = sCache.get(resId);
+			if (mapping != null)
+				return mapping;
+			InputStream mappingXml = res.openRawResource(resId);
+			try {
+				mapping = new LDAPSyncMapping(mappingXml);
+			} finally {
+				try { mappingXml.close(); } catch (IOException e) {}
+			}
+			Log.d(TAG, "Compiled mapping version " + mapping.mVersion + " with " + mapping.mRows.size() + " rows");
+			sCache.put(resId, mapping);
+			return mapping;
+		}
+	}
+
+	final List<RowBuilder> mRows;
+	final String mVersion;
+	private final String[] mLDAPAttribs;
+	private final String[] mDeferredAttribs;
+
+	// every mapped LDAP attribute gets a slot; an entry's attributes are
+	// sorted into slots once and the RowBuilders read them from there
+	private final String[] mSlotNames;
+	private final boolean[] mSlotDeferred;
+	private final int[] mSlotTable; // open-addressed, case-insensitive name -> slot
+
 	LDAPSyncMapping(InputStream mappingXml) throws ParseError
 	{
-		mRows = new Parser().read(mappingXml);
+		Parser parser = new Parser();
+		mRows = parser.read(mappingXml);
+		mVersion = parser.mappingVersion;
+		for (RowBuilder row: mRows)
+			row.compile();
+		mLDAPAttribs = getAttributes(false);
+		mDeferredAttribs = getAttributes(true);
+
+		int numSlots = mLDAPAttribs.length + mDeferredAttribs.length;
+		mSlotNames = new String[numSlots];
+		mSlotDeferred = new boolean[numSlots];
+		int capacity = 16;
+		while (capacity < numSlots * 2) capacity <<= 1;
+		mSlotTable = new int[capacity];
+		Arrays.fill(mSlotTable, -1);
+		int n = 0;
+		for (String attr: mLDAPAttribs)
+			addSlot(n++, attr, false);
+		for (String attr: mDeferredAttribs) {
+			if (findSlot(attr) < 0) // might be shared with a normal row
+				addSlot(n++, attr, true);
+		}
+		for (RowBuilder row: mRows) {
+			for (int vi = 0; vi < row.mSlots.length; vi++)
+				row.mSlots[vi] = row.mIsLiteral[vi] ? -1 : findSlot(row.mSources[vi]);
+		}
 	}
-	
-	public void buildData(ArrayList<ContentProviderOperation> ops, SearchResultEntry entry, LDAPSyncAdapter.BuilderBuilder bb)
+
+	private void addSlot(int slot, String name, boolean deferred)
+	{
+		mSlotNames[slot] = name;
+		mSlotDeferred[slot] = deferred;
+		int mask = mSlotTable.length - 1;
+		int i = hashIgnoreCase(name) & mask;
+		while (mSlotTable[i] != -1) i = (i + 1) & mask;
+		mSlotTable[i] = slot;
+	}
+
+	/**
+	 * Returns the slot of a mapped attribute, ignoring case like LDAP does,
+	 * or -1 if no RowBuilder uses it.
+	 */
+	private int findSlot(String name)
 	{
-		HashSet<String> mappedAttribs = new HashSet<String>();
+		int mask = mSlotTable.length - 1;
+		for (int i = hashIgnoreCase(name) & mask; mSlotTable[i] != -1; i = (i + 1) & mask) {
+			if (mSlotNames[mSlotTable[i]].equalsIgnoreCase(name)) return mSlotTable[i];
+		}
+		return -1;
+	}
+
+	private static int hashIgnoreCase(String s)
+	{
+		int h = 0;
+		for (int i = 0; i < s.length(); i++)
+			h = 31 * h + Character.toLowerCase(s.charAt(i));
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the LDAP attributes the RowBuilders read values from, which is
+	 * all a search has to ask for unless unmapped attributes are kept too.
+	 */
+	public String[] getLDAPAttributes()
+	{
+		return mLDAPAttribs;
+	}
+
+	/**
+	 * Returns the LDAP attributes used by deferred (blob) rows, which the
+	 * main search leaves out.
+	 */
+	public String[] getDeferredAttributes()
+	{
+		return mDeferredAttribs;
+	}
+
+	private String[] getAttributes(boolean deferred)
+	{
+		ArrayList<String> attribs = new ArrayList<String>();
+		HashSet<String> seen = new HashSet<String>();
 		for (RowBuilder row: mRows) {
-			row.buildInsert(ops, entry, mappedAttribs, bb);
+			if (row.isDeferred() != deferred) continue;
+			for (int vi = 0; vi < row.mSources.length; vi++) {
+				if (row.mIsLiteral[vi]) continue;
+				if (seen.add(row.mSources[vi].toLowerCase())) attribs.add(row.mSources[vi]);
+			}
 		}
-		
-		// add custom data entries for unmapped attributes
-		for (Attribute attrib: entry.getAttributes()) {
-			if (mappedAttribs.contains(attrib.getName()))
-				continue;
-			
-			int i = 0;
-			for (byte[] value: attrib.getValueByteArrays()) {
-				Builder b = bb.newInsert();
-				b.withValue(Data.MIMETYPE, MIME_LDAP_ATTRIBUTE);
-				b.withValue(COLUMN_ATTRIB_NAME, attrib.getName());
-				b.withValue(COLUMN_ATTRIB_INDEX, ""+(i++));
-				b.withValue(COLUMN_ATTRIB_DATA, value);
-				ops.add(b.build());
+		return attribs.toArray(new String[attribs.size()]);
+	}
+
+	private boolean isDeferredAttribute(String name)
+	{
+		int slot = findSlot(name);
+		return slot >= 0 && mSlotDeferred[slot];
+	}
+
+	/**
+	 * Tells whether the main sync writes the attribute to the contacts DB,
+	 * which it does with all but bookkeeping and deferred attributes.
+	 */
+	public boolean isSyncedAttribute(String name)
+	{
+		return !isBookkeepingAttribute(name) && !isDeferredAttribute(name);
+	}
+
+	private static final Comparator<Attribute> ATTRIBUTE_NAME_ORDER = new Comparator<Attribute>() {
+		public int compare(Attribute a, Attribute b) {
+			return a.getName().compareToIgnoreCase(b.getName());
+		}
+	};
+
+	private static final Comparator<byte[]> BYTE_ARRAY_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			for (int i = 0; i < a.length && i < b.length; i++) {
+				if (a[i] != b[i]) return (a[i] & 0xff) - (b[i] & 0xff);
+			}
+			return a.length - b.length;
+		}
+	};
+	
+	private static final ASN1OctetString[] NO_VALUES = new ASN1OctetString[0];
+
+	// one value of an unmapped attribute, found by name and index rather than row id
+	private static final String ATTRIBUTE_SELECTION = Data.RAW_CONTACT_ID + " = ? AND " + Data.MIMETYPE + " = ? AND "
+			+ COLUMN_ATTRIB_NAME + " = ? AND " + COLUMN_ATTRIB_INDEX + " = ?";
+
+	private static String[] attributeSelectionArgs(long rawContactId, String name, int index) {
+		return new String[] { ""+rawContactId, MIME_LDAP_ATTRIBUTE, name, ""+index };
+	}
+
+	private static ContentProviderOperation newAttributeDelete(long rawContactId, String name, int index) {
+		Builder b = ContentProviderOperation.newDelete(Utils.syncURI(Data.CONTENT_URI));
+		b.withSelection(ATTRIBUTE_SELECTION, attributeSelectionArgs(rawContactId, name, index));
+		return b.build();
+	}
+
+	// unmapped attributes are stored under the name the server gave, so match it exactly
+	private static Attribute findAttribute(List<Attribute> attribs, String name) {
+		for (int i = 0; i < attribs.size(); i++) {
+			if (attribs.get(i).getName().equals(name)) return attribs.get(i);
+		}
+		return null;
+	}
+
+	private static ContentProviderOperation newAttributeInsert(BuilderBuilder bb, String name, int index, byte[] value) {
+		Builder b = bb.newInsert();
+		b.withValue(Data.MIMETYPE, MIME_LDAP_ATTRIBUTE);
+		b.withValue(COLUMN_ATTRIB_NAME, name);
+		b.withValue(COLUMN_ATTRIB_INDEX, ""+index);
+		b.withValue(COLUMN_ATTRIB_DATA, value);
+		return b.build();
+	}
+
+	/**
+	 * Reads the Data rows of several raw contacts in one query and sorts
+	 * them by raw contact and owning RowBuilder, ready for buildUpdate.
+	 */
+	public void readData(ContentProviderClient provider, long[] rawContactIds, int count,
+			Map<Long, ArrayList<StoredRow>> outRows) throws RemoteException
+	{
+		readData(provider, rawContactIds, count, outRows, false);
+	}
+
+	/**
+	 * As above; the values of deferred rows are only read (and their blobs
+	 * copied out of the cursor) if readDeferred is set.
+	 */
+	public void readData(ContentProviderClient provider, long[] rawContactIds, int count,
+			Map<Long, ArrayList<StoredRow>> outRows, boolean readDeferred) throws RemoteException
+	{
+		StringBuilder selection = new StringBuilder(Data.RAW_CONTACT_ID + " IN (");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) selection.append(',');
+			selection.append(rawContactIds[i]);
+			outRows.put(rawContactIds[i], new ArrayList<StoredRow>());
+		}
+		selection.append(')');
+
+		Cursor c = provider.query(Utils.syncURI(Data.CONTENT_URI), DATA_PROJECTION, selection.toString(), null,
+				Data.RAW_CONTACT_ID + ", " + Data._ID);
+		try {
+			while (c.moveToNext()) {
+				long id = c.getLong(0);
+				long rawContactId = c.getLong(1);
+				String mimeType = c.getString(2);
+				StoredRow row = null;
+				if (MIME_LDAP_ATTRIBUTE.equals(mimeType)) {
+					row = new StoredRow(id, OWNER_LDAP_ATTRIBUTE, new Object[] {
+							c.getString(c.getColumnIndex(COLUMN_ATTRIB_NAME)),
+							Integer.valueOf(c.getInt(c.getColumnIndex(COLUMN_ATTRIB_INDEX))),
+							c.getBlob(c.getColumnIndex(COLUMN_ATTRIB_DATA)) });
+				} else {
+					for (int r = 0; r < mRows.size(); r++) {
+						RowBuilder builder = mRows.get(r);
+						if (builder.owns(c, mimeType)) {
+							boolean skipValues = builder.isDeferred() && !readDeferred;
+							row = new StoredRow(id, r, skipValues ? null : builder.readRow(c));
+							break;
+						}
+					}
+				}
+				if (row == null)
+					row = new StoredRow(id, OWNER_NONE, null);
+				outRows.get(rawContactId).add(row);
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	public Transformer newTransformer()
+	{
+		return new Transformer();
+	}
+
+	/**
+	 * Turns entries into contacts DB operations.  It keeps scratch space
+	 * that's reused from one entry to the next, so every sync needs its own,
+	 * while the mapping itself is shared.
+	 */
+	public class Transformer {
+		private final Attribute[] mAttribs = new Attribute[mSlotNames.length];
+		private final ArrayList<Attribute> mUnmapped = new ArrayList<Attribute>();
+		private final ArrayList<StoredRow> mOwned = new ArrayList<StoredRow>();
+		private final ArrayList<StoredRow> mOldAttribs = new ArrayList<StoredRow>(); // matched ones are nulled out
+		private final ArrayList<Attribute> mSortedAttribs = new ArrayList<Attribute>();
+		private final MessageDigest mDigest;
+		private final byte[] mVersionBytes = mVersion.getBytes();
+		private final byte[] mLengthPrefix = new byte[5];
+		private final ArrayList<ArrayList<Object[]>> mRowScratch = new ArrayList<ArrayList<Object[]>>();
+
+		// the same again for the entry a contact was last synced from
+		private final Attribute[] mSyncedAttribs = new Attribute[mSlotNames.length];
+		private final ArrayList<Attribute> mSyncedUnmapped = new ArrayList<Attribute>();
+		private final ArrayList<ArrayList<Object[]>> mSyncedRowScratch = new ArrayList<ArrayList<Object[]>>();
+
+		private Transformer() {
+			for (int r = 0; r < mRows.size(); r++) {
+				mRowScratch.add(new ArrayList<Object[]>());
+				mSyncedRowScratch.add(new ArrayList<Object[]>());
+			}
+			try {
+				mDigest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("SHA-1 not available", e);
+			}
+		}
+
+		/**
+		 * Computes a hash of everything in the entry that ends up in the
+		 * contacts DB, plus the mapping version.  Attribute names are
+		 * case-folded and names and values are sorted so that the result
+		 * doesn't depend on the order the server sends them in.
+		 */
+		public String fingerprint(SearchResultEntry entry)
+		{
+			mDigest.reset();
+			mDigest.update(mVersionBytes);
+
+			mSortedAttribs.addAll(entry.getAttributes());
+			Collections.sort(mSortedAttribs, ATTRIBUTE_NAME_ORDER);
+			for (int a = 0; a < mSortedAttribs.size(); a++) {
+				Attribute attrib = mSortedAttribs.get(a);
+				if (!isSyncedAttribute(attrib.getName()))
+					continue;
+				mDigest.update((byte)0);
+				mDigest.update(attrib.getName().toLowerCase().getBytes());
+				byte[][] values = attrib.getValueByteArrays();
+				Arrays.sort(values, BYTE_ARRAY_ORDER);
+				for (byte[] value: values) {
+					// length prefix keeps value boundaries unambiguous
+					mLengthPrefix[0] = 1;
+					mLengthPrefix[1] = (byte)(value.length >>> 24);
+					mLengthPrefix[2] = (byte)(value.length >>> 16);
+					mLengthPrefix[3] = (byte)(value.length >>> 8);
+					mLengthPrefix[4] = (byte)value.length;
+					mDigest.update(mLengthPrefix);
+					mDigest.update(value);
+				}
+			}
+			mSortedAttribs.clear();
+
+			byte[] hash = mDigest.digest();
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b: hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		}
+
+		private void load(Entry entry) {
+			load(entry, mAttribs, mUnmapped);
+		}
+
+		/**
+		 * Sorts the entry's attributes into slots in a single pass.  Anything
+		 * the mapping doesn't use ends up in the unmapped list.
+		 */
+		private void load(Entry entry, Attribute[] attribs, ArrayList<Attribute> unmapped) {
+			Arrays.fill(attribs, null);
+			unmapped.clear();
+			for (Attribute attrib: entry.getAttributes()) {
+				int slot = findSlot(attrib.getName());
+				if (slot >= 0)
+					attribs[slot] = attrib;
+				else if (!isBookkeepingAttribute(attrib.getName()))
+					unmapped.add(attrib);
+			}
+		}
+
+		private List<StoredRow> owned(List<StoredRow> existing, int owner) {
+			mOwned.clear();
+			for (StoredRow row: existing)
+				if (row.owner == owner) mOwned.add(row);
+			return mOwned;
+		}
+
+		public void buildData(ContactsBatch ops, SearchResultEntry entry, BuilderBuilder bb)
+		{
+			load(entry);
+			for (int r = 0; r < mRows.size(); r++) {
+				if (!mRows.get(r).isDeferred())
+					mRows.get(r).buildInsert(ops, mAttribs, mRowScratch.get(r), bb);
+			}
+
+			// add custom data entries for unmapped attributes
+			for (Attribute attrib: mUnmapped) {
+				ASN1OctetString[] values = attrib.getRawValues();
+				for (int i = 0; i < values.length; i++)
+					ops.add(newAttributeInsert(bb, attrib.getName(), i, values[i].getValue()),
+							values[i].getValueLength());
+			}
+		}
+
+		/**
+		 * Adds the minimal operations needed to turn the stored rows of an
+		 * existing raw contact into the rows buildData would create for the
+		 * entry.  Returns the number of operations added.
+		 */
+		public int buildUpdate(ContactsBatch ops, SearchResultEntry entry,
+				List<StoredRow> existing, BuilderBuilder bb)
+		{
+			load(entry);
+			int opCount = 0;
+			for (int r = 0; r < mRows.size(); r++) {
+				if (mRows.get(r).isDeferred()) continue; // left to PhotoSync
+				opCount += mRows.get(r).buildUpdate(ops, mAttribs, mRowScratch.get(r), owned(existing, r), bb);
+			}
+
+			mOldAttribs.clear();
+			for (int k = 0; k < existing.size(); k++) {
+				StoredRow row = existing.get(k);
+				if (row.owner == OWNER_LDAP_ATTRIBUTE) {
+					mOldAttribs.add(row);
+				} else if (row.owner == OWNER_NONE) {
+					// not something this mapping would create
+					ops.add(newDataDelete(row.id));
+					opCount++;
+				}
+			}
+			for (int a = 0; a < mUnmapped.size(); a++) {
+				Attribute attrib = mUnmapped.get(a);
+				ASN1OctetString[] values = attrib.getRawValues();
+				for (int i = 0; i < values.length; i++) {
+					byte[] value = values[i].getValue();
+					int k = findAttributeRow(mOldAttribs, attrib.getName(), i);
+					StoredRow old = k < 0 ? null : mOldAttribs.set(k, null);
+					if (old == null) {
+						ops.add(newAttributeInsert(bb, attrib.getName(), i, value), value.length);
+						opCount++;
+					} else if (!valueEquals(value, old.values[2])) {
+						Builder b = ContentProviderOperation.newUpdate(Utils.syncURI(Data.CONTENT_URI));
+						b.withSelection(Data._ID + " = ?", new String[]{""+old.id});
+						b.withValue(COLUMN_ATTRIB_DATA, value);
+						ops.add(b.build(), value.length);
+						opCount++;
+					}
+				}
 			}
+			for (int k = 0; k < mOldAttribs.size(); k++) {
+				StoredRow old = mOldAttribs.get(k);
+				if (old == null) continue;
+				ops.add(newDataDelete(old.id));
+				opCount++;
+			}
+			mOldAttribs.clear();
+			return opCount;
+		}
+
+		/**
+		 * Like buildUpdate, but works out what changed by comparing the entry
+		 * with the one the raw contact was last synced from, as kept by the
+		 * ShadowStore, so its Data rows needn't be read.  That's only right
+		 * if the contact's rows were built from that entry by this mapping,
+		 * which a matching fingerprint guarantees.
+		 */
+		public int buildUpdate(ContactsBatch ops, SearchResultEntry entry, Entry synced,
+				long rawContactId, BuilderBuilder bb)
+		{
+			load(entry);
+			load(synced, mSyncedAttribs, mSyncedUnmapped);
+			int opCount = 0;
+			for (int r = 0; r < mRows.size(); r++) {
+				if (mRows.get(r).isDeferred()) continue; // left to PhotoSync
+				opCount += mRows.get(r).buildReplace(ops, mAttribs, mRowScratch.get(r),
+						mSyncedAttribs, mSyncedRowScratch.get(r), rawContactId, bb);
+			}
+
+			for (Attribute attrib: mUnmapped) {
+				Attribute old = findAttribute(mSyncedUnmapped, attrib.getName());
+				ASN1OctetString[] values = attrib.getRawValues();
+				ASN1OctetString[] oldValues = old == null ? NO_VALUES : old.getRawValues();
+				for (int i = 0; i < values.length; i++) {
+					byte[] value = values[i].getValue();
+					if (i >= oldValues.length) {
+						ops.add(newAttributeInsert(bb, attrib.getName(), i, value), value.length);
+						opCount++;
+					} else if (!valueEquals(value, oldValues[i].getValue())) {
+						Builder b = ContentProviderOperation.newUpdate(Utils.syncURI(Data.CONTENT_URI));
+						b.withSelection(ATTRIBUTE_SELECTION, attributeSelectionArgs(rawContactId, attrib.getName(), i));
+						b.withValue(COLUMN_ATTRIB_DATA, value);
+						ops.add(b.build(), value.length);
+						opCount++;
+					}
+				}
+				for (int i = values.length; i < oldValues.length; i++) {
+					ops.add(newAttributeDelete(rawContactId, attrib.getName(), i));
+					opCount++;
+				}
+			}
+			for (Attribute old: mSyncedUnmapped) {
+				if (findAttribute(mUnmapped, old.getName()) != null) continue;
+				for (int i = 0; i < old.size(); i++) {
+					ops.add(newAttributeDelete(rawContactId, old.getName(), i));
+					opCount++;
+				}
+			}
+			return opCount;
+		}
+
+		/**
+		 * Like buildUpdate, but only for the deferred rows, using an entry that
+		 * holds just the deferred attributes.
+		 */
+		public int buildDeferredUpdate(ContactsBatch ops, SearchResultEntry entry,
+				List<StoredRow> existing, BuilderBuilder bb)
+		{
+			load(entry);
+			int opCount = 0;
+			for (int r = 0; r < mRows.size(); r++) {
+				if (mRows.get(r).isDeferred())
+					opCount += mRows.get(r).buildUpdate(ops, mAttribs, mRowScratch.get(r), owned(existing, r), bb);
+			}
+			return opCount;
 		}
 	}
 
@@ -293,11 +1026,16 @@ class LDAPSyncMapping {
 					new String[] { RawContacts.SOURCE_ID },
 					RawContacts._ID + " = " + rawContactId,
 					null, null);
-			if (!idCursor.moveToFirst()) {
-				// contact not found
-				return null;
+			String dn;
+			try {
+				if (!idCursor.moveToFirst()) {
+					// contact not found
+					return null;
+				}
+				dn = idCursor.getString(0);
+			} finally {
+				idCursor.close();
 			}
-			String dn = idCursor.getString(0);
 			Entry result = new Entry(dn);
 			
 			// translate mapped attributes back to LDAP
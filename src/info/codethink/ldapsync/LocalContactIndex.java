@@ -0,0 +1,241 @@
+package info.codethink.ldapsync;
+
+import java.util.BitSet;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * Index of the raw contacts already stored for an account, keyed by the
+ * normalized DN kept in their SOURCE_ID column.  It's loaded with a single
+ * query at the start of a sync so that incoming LDAP entries can be matched
+ * to local contacts without a provider round-trip per entry.
+ *
+ * The table is open-addressed (linear probing) over parallel arrays to keep
+ * it compact for directories with tens of thousands of entries.  A bitset
+ * over the slots records which contacts the server has mentioned during the
+ * sync, so the ones it didn't can be swept afterwards.
+ */
+class LocalContactIndex {
+	private static final String TAG = "LocalContactIndex";
+
+	private static final String[] PROJECTION = new String[] {
+		RawContacts._ID, RawContacts.SOURCE_ID, RawContacts.VERSION, RawContacts.SYNC1, RawContacts.SYNC2,
+		RawContacts.SYNC3, RawContacts.SYNC4
+	};
+
+	public static final int NOT_FOUND = -1;
+
+	private String[] mKeys;
+	private long[] mIds;
+	private int[] mVersions;
+	private String[] mSync1;
+	private String[] mSync2;
+	private String[] mSync3;
+	private String[] mSync4;
+	private int mSize;
+	private BitSet mSeen;
+
+	// secondary table from entryUUID (kept in SYNC2) to slot, built on demand
+	private String[] mUUIDKeys;
+	private int[] mUUIDSlots;
+
+	public LocalContactIndex(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) capacity <<= 1; // keep load factor <= 0.5
+		mKeys = new String[capacity];
+		mIds = new long[capacity];
+		mVersions = new int[capacity];
+		mSync1 = new String[capacity];
+		mSync2 = new String[capacity];
+		mSync3 = new String[capacity];
+		mSync4 = new String[capacity];
+		mSeen = new BitSet(capacity);
+	}
+
+	/**
+	 * Loads every raw contact belonging to the account in one cursor pass.
+	 */
+	public static LocalContactIndex load(ContentProviderClient provider, Account account) throws RemoteException {
+		String selection = RawContacts.ACCOUNT_TYPE + " = ? AND " + RawContacts.ACCOUNT_NAME + " = ?";
+		Cursor c = provider.query(RawContacts.CONTENT_URI, PROJECTION, selection,
+				new String[] { account.type, account.name }, null);
+		try {
+			LocalContactIndex index = new LocalContactIndex(c.getCount());
+			while (c.moveToNext()) {
+				String sourceId = c.getString(1);
+				if (sourceId == null) continue; // not created by us
+				index.put(sourceId, c.getLong(0), c.getInt(2), c.getString(3), c.getString(4), c.getString(5),
+						c.getString(6));
+			}
+			Log.v(TAG, "Loaded " + index.size() + " local contacts for " + account.name);
+			return index;
+		} finally {
+			c.close();
+		}
+	}
+
+	public static String normalizeDN(String dn) {
+		try {
+			return DN.normalize(dn);
+		} catch (LDAPException e) {
+			// not a valid DN, but still needs to match itself
+			return dn.toLowerCase();
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * Returns the slot holding the given DN, or NOT_FOUND.
+	 */
+	public int find(String dn) {
+		String key = normalizeDN(dn);
+		int mask = mKeys.length - 1;
+		for (int slot = hash(key) & mask; mKeys[slot] != null; slot = (slot + 1) & mask) {
+			if (mKeys[slot].equals(key)) return slot;
+		}
+		return NOT_FOUND;
+	}
+
+	/** Returns the normalized DN in the slot */
+	public String getDN(int slot) {
+		return mKeys[slot];
+	}
+
+	public long getRawContactId(int slot) {
+		return mIds[slot];
+	}
+
+	public int getVersion(int slot) {
+		return mVersions[slot];
+	}
+
+	public String getSync1(int slot) {
+		return mSync1[slot];
+	}
+
+	public String getSync2(int slot) {
+		return mSync2[slot];
+	}
+
+	public String getSync3(int slot) {
+		return mSync3[slot];
+	}
+
+	public String getSync4(int slot) {
+		return mSync4[slot];
+	}
+
+	/**
+	 * Returns the slot of the contact whose SYNC2 column holds the given
+	 * entryUUID, or NOT_FOUND.
+	 */
+	public int findByUUID(String uuid) {
+		if (mUUIDKeys == null) buildUUIDTable();
+		int mask = mUUIDKeys.length - 1;
+		for (int i = hash(uuid) & mask; mUUIDKeys[i] != null; i = (i + 1) & mask) {
+			if (mUUIDKeys[i].equals(uuid)) return mUUIDSlots[i];
+		}
+		return NOT_FOUND;
+	}
+
+	public void markSeen(int slot) {
+		mSeen.set(slot);
+	}
+
+	/**
+	 * Returns the first occupied slot at or after fromSlot, or NOT_FOUND if
+	 * there are none left.
+	 */
+	public int nextSlot(int fromSlot) {
+		for (int slot = fromSlot; slot < mKeys.length; slot++) {
+			if (mKeys[slot] != null) return slot;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Returns the first occupied slot at or after fromSlot whose contact
+	 * hasn't been marked as seen, or NOT_FOUND if there are none left.
+	 */
+	public int nextUnseen(int fromSlot) {
+		for (int slot = mSeen.nextClearBit(fromSlot); slot < mKeys.length; slot = mSeen.nextClearBit(slot + 1)) {
+			if (mKeys[slot] != null) return slot;
+		}
+		return NOT_FOUND;
+	}
+
+	private void buildUUIDTable() {
+		mUUIDKeys = new String[mKeys.length];
+		mUUIDSlots = new int[mKeys.length];
+		int mask = mUUIDKeys.length - 1;
+		for (int slot = 0; slot < mKeys.length; slot++) {
+			if (mKeys[slot] == null || mSync2[slot] == null) continue;
+			int i = hash(mSync2[slot]) & mask;
+			while (mUUIDKeys[i] != null) i = (i + 1) & mask;
+			mUUIDKeys[i] = mSync2[slot];
+			mUUIDSlots[i] = slot;
+		}
+	}
+
+	public void put(String dn, long rawContactId, int version, String sync1, String sync2, String sync3,
+			String sync4) {
+		putNormalized(normalizeDN(dn), rawContactId, version, sync1, sync2, sync3, sync4);
+	}
+
+	private void putNormalized(String key, long rawContactId, int version, String sync1, String sync2, String sync3,
+			String sync4) {
+		if ((mSize + 1) * 2 > mKeys.length) grow();
+		int mask = mKeys.length - 1;
+		int slot = hash(key) & mask;
+		while (mKeys[slot] != null && !mKeys[slot].equals(key))
+			slot = (slot + 1) & mask;
+		if (mKeys[slot] == null) mSize++;
+		mKeys[slot] = key;
+		mIds[slot] = rawContactId;
+		mVersions[slot] = version;
+		mSync1[slot] = sync1;
+		mSync2[slot] = sync2;
+		mSync3[slot] = sync3;
+		mSync4[slot] = sync4;
+		mUUIDKeys = null;
+	}
+
+	private void grow() {
+		String[] keys = mKeys;
+		long[] ids = mIds;
+		int[] versions = mVersions;
+		String[] sync1 = mSync1;
+		String[] sync2 = mSync2;
+		String[] sync3 = mSync3;
+		String[] sync4 = mSync4;
+		mKeys = new String[keys.length * 2];
+		mIds = new long[keys.length * 2];
+		mVersions = new int[keys.length * 2];
+		mSync1 = new String[keys.length * 2];
+		mSync2 = new String[keys.length * 2];
+		mSync3 = new String[keys.length * 2];
+		mSync4 = new String[keys.length * 2];
+		mSeen = new BitSet(keys.length * 2); // slots move, so marks don't survive growing
+		mSize = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) putNormalized(keys[i], ids[i], versions[i], sync1[i], sync2[i], sync3[i],
+					sync4[i]);
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16); // spread high bits into the masked range
+	}
+}
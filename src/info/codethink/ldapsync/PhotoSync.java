@@ -0,0 +1,351 @@
+package info.codethink.ldapsync;
+
+import info.codethink.ldapsync.LDAPSyncMapping.StoredRow;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderOperation.Builder;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.RemoteException;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+
+/**
+ * Second pass of a sync which fetches the mapping's deferred (binary)
+ * attributes, usually jpegPhoto.  Keeping them out of the main search
+ * stops a directory full of photos from bloating every page of results.
+ * Usually only the entries that are new or have changed are checked,
+ * read one at a time if there are only a few of them; once in a long
+ * while every contact is, with a paged search for the entries that have
+ * a photo.
+ *
+ * A hash of the raw attribute values is kept in the raw contact's SYNC3
+ * column, so unchanged photos are neither decoded nor rewritten, and the
+ * modifyTimestamp of the entry last checked in SYNC4, so the main pass can
+ * tell which entries may have a new photo.  Photos are scaled down to
+ * thumbnail size before being stored, and fetched photos are written in
+ * groups bounded by their total size.
+ */
+class PhotoSync {
+	private static final String TAG = "PhotoSync";
+
+	private static final int PHOTO_SIZE = 96; // largest thumbnail the contacts app shows
+	private static final int JPEG_QUALITY = 85;
+	private static final int BATCH_BYTES = 256 * 1024;
+	private static final int BATCH_CONTACTS = 25;
+	private static final String NO_PHOTO = "none"; // SYNC3 value for entries without one
+	private static final int MAX_SINGLE_FETCHES = 50; // more candidates than this are searched for
+
+	private final ContentProviderClient mProvider;
+	private final LDAPSyncMapping mMapping;
+	private final LDAPSyncMapping.Transformer mTransformer;
+	private final SyncResult mSyncResult;
+	private final ContactsBatch mBatch;
+
+	private final ArrayList<SearchResultEntry> mPendingEntries = new ArrayList<SearchResultEntry>();
+	private final long[] mPendingIds = new long[BATCH_CONTACTS];
+	private final String[] mPendingHashes = new String[BATCH_CONTACTS];
+	private final String[] mPendingTimestamps = new String[BATCH_CONTACTS];
+	private int mPendingBytes;
+
+	public PhotoSync(ContentProviderClient provider, LDAPSyncMapping mapping, SyncResult syncResult) {
+		mProvider = provider;
+		mMapping = mapping;
+		mTransformer = mapping.newTransformer();
+		mSyncResult = syncResult;
+		mBatch = new ContactsBatch(provider);
+	}
+
+	/**
+	 * Checks the photo of every contact in the index.  The index has to be
+	 * loaded after the main pass so that newly inserted contacts are in it.
+	 * dns and timestamps are as for sync(), and only used for SYNC4.
+	 * Returns whether every contact was checked.
+	 */
+	public boolean syncAll(LDAPContactSource src, List<String> dns, List<String> timestamps,
+			LocalContactIndex localContacts) {
+		if (mMapping.getDeferredAttributes().length == 0)
+			return true;
+		boolean complete = searchPhotos(src, localContacts, null, slotTimestamps(dns, timestamps, localContacts));
+		flush();
+		Log.i(TAG, "Photo writes: " + mBatch);
+		return complete && !mSyncResult.databaseError;
+	}
+
+	/**
+	 * Checks the photos of the given entries only.  timestamps holds the
+	 * modifyTimestamp the main pass saw for each of them (or null), which
+	 * is kept in SYNC4 once the photo has been checked.
+	 */
+	public void sync(LDAPContactSource src, List<String> dns, List<String> timestamps, LocalContactIndex localContacts) {
+		String[] attributes = mMapping.getDeferredAttributes();
+		if (attributes.length == 0 || dns.isEmpty())
+			return;
+		HashMap<Integer, String> slotTimestamps = slotTimestamps(dns, timestamps, localContacts);
+		if (dns.size() > MAX_SINGLE_FETCHES) {
+			BitSet wanted = new BitSet();
+			for (int slot : slotTimestamps.keySet())
+				wanted.set(slot);
+			searchPhotos(src, localContacts, wanted, slotTimestamps);
+		} else {
+			for (String dn : dns) {
+				int slot = localContacts.find(dn);
+				if (slot == LocalContactIndex.NOT_FOUND)
+					continue;
+				SearchResultEntry entry;
+				try {
+					entry = src.fetchEntry(dn, attributes);
+				} catch (LDAPException e) {
+					Log.w(TAG, "Could not fetch photo for " + dn, e);
+					mSyncResult.stats.numSkippedEntries++;
+					continue;
+				}
+				if (entry == null)
+					continue; // deleted since the main pass
+				update(entry, slot, localContacts, slotTimestamps.get(slot));
+				if (mSyncResult.databaseError)
+					return;
+			}
+		}
+		flush();
+		Log.i(TAG, "Photo writes: " + mBatch);
+	}
+
+	private static HashMap<Integer, String> slotTimestamps(List<String> dns, List<String> timestamps,
+			LocalContactIndex localContacts) {
+		HashMap<Integer, String> slotTimestamps = new HashMap<Integer, String>();
+		for (int i = 0; i < dns.size(); i++) {
+			int slot = localContacts.find(dns.get(i));
+			if (slot != LocalContactIndex.NOT_FOUND)
+				slotTimestamps.put(slot, timestamps.get(i));
+		}
+		return slotTimestamps;
+	}
+
+	/**
+	 * Searches for the entries with photos and updates the contacts in
+	 * wanted (or all of them, if it's null) from the results.  Once the
+	 * search has completed, contacts it didn't return have no photo.
+	 * Returns false if the search failed or didn't complete.
+	 */
+	private boolean searchPhotos(LDAPContactSource src, final LocalContactIndex localContacts, final BitSet wanted,
+			final HashMap<Integer, String> slotTimestamps) {
+		final BitSet handled = new BitSet(); // bases can overlap
+		boolean complete;
+		try {
+			complete = src.searchWithAttributes(mMapping.getDeferredAttributes(), new SearchResultListener() {
+				private static final long serialVersionUID = 1L;
+				public void searchReferenceReturned(SearchResultReference ref) {}
+				public void searchEntryReturned(SearchResultEntry entry) {
+					int slot = localContacts.find(entry.getDN());
+					if (slot == LocalContactIndex.NOT_FOUND || handled.get(slot) || (wanted != null && !wanted.get(slot)))
+						return;
+					handled.set(slot);
+					if (!mSyncResult.databaseError)
+						update(entry, slot, localContacts, slotTimestamps.get(slot));
+				}
+			});
+		} catch (LDAPException e) {
+			Log.w(TAG, "Photo search failed", e);
+			mSyncResult.stats.numIoExceptions++;
+			return false;
+		}
+		if (!complete)
+			return false; // can't tell which contacts have lost their photos
+		for (int slot = localContacts.nextSlot(0); slot != LocalContactIndex.NOT_FOUND && !mSyncResult.databaseError;
+				slot = localContacts.nextSlot(slot + 1)) {
+			if (handled.get(slot) || (wanted != null && !wanted.get(slot)))
+				continue;
+			update(new SearchResultEntry(localContacts.getDN(slot), new Attribute[0]), slot, localContacts,
+					slotTimestamps.get(slot));
+		}
+		return true;
+	}
+
+	/**
+	 * Queues the contact's photo rows for rewriting if the entry's deferred
+	 * attributes differ from the ones last stored, and the timestamp for
+	 * SYNC4 if it has moved.
+	 */
+	private void update(SearchResultEntry entry, int slot, LocalContactIndex localContacts, String timestamp) {
+		String[] attributes = mMapping.getDeferredAttributes();
+		String hash = hash(entry, attributes);
+		if (timestamp != null && timestamp.equals(localContacts.getSync4(slot)))
+			timestamp = null; // already stored
+		if (hash.equals(localContacts.getSync3(slot))) {
+			if (timestamp != null) {
+				mBatch.add(newRawContactUpdate(localContacts.getRawContactId(slot), null, timestamp));
+				if (mBatch.isFull())
+					flush();
+			}
+			return;
+		}
+		Log.v(TAG, "Updating photo for " + entry.getDN());
+		addPending(scale(entry, attributes), localContacts.getRawContactId(slot), hash, timestamp);
+	}
+
+	private static ContentProviderOperation newRawContactUpdate(long rawContactId, String hash, String timestamp) {
+		Builder builder = ContentProviderOperation.newUpdate(Utils.syncURI(RawContacts.CONTENT_URI));
+		ContactsBatch.yieldPoint(builder);
+		builder.withSelection(RawContacts._ID + " = ?", new String[]{""+rawContactId});
+		if (hash != null)
+			builder.withValue(RawContacts.SYNC3, hash);
+		if (timestamp != null)
+			builder.withValue(RawContacts.SYNC4, timestamp);
+		return builder.build();
+	}
+
+	private void addPending(SearchResultEntry entry, long rawContactId, String hash, String timestamp) {
+		int i = mPendingEntries.size();
+		mPendingEntries.add(entry);
+		mPendingIds[i] = rawContactId;
+		mPendingHashes[i] = hash;
+		mPendingTimestamps[i] = timestamp;
+		for (Attribute attr : entry.getAttributes()) {
+			for (byte[] value : attr.getValueByteArrays())
+				mPendingBytes += value.length;
+		}
+		if (mPendingBytes >= BATCH_BYTES || mPendingEntries.size() == BATCH_CONTACTS)
+			flush();
+	}
+
+	private void flush() {
+		if (mPendingEntries.isEmpty() && mBatch.size() == 0)
+			return;
+		try {
+			HashMap<Long, ArrayList<StoredRow>> storedRows = new HashMap<Long, ArrayList<StoredRow>>();
+			if (!mPendingEntries.isEmpty())
+				mMapping.readData(mProvider, mPendingIds, mPendingEntries.size(), storedRows, true);
+			for (int i = 0; i < mPendingEntries.size(); i++) {
+				final long rawContactId = mPendingIds[i];
+				mBatch.add(newRawContactUpdate(rawContactId, mPendingHashes[i], mPendingTimestamps[i]));
+				mTransformer.buildDeferredUpdate(mBatch, mPendingEntries.get(i), storedRows.get(rawContactId),
+						new LDAPSyncAdapter.BuilderBuilder() {
+					public Builder newInsert() {
+						Builder result = ContentProviderOperation.newInsert(Utils.syncURI(Data.CONTENT_URI));
+						result.withValue(Data.RAW_CONTACT_ID, rawContactId);
+						return result;
+					}
+				});
+				mSyncResult.stats.numUpdates++;
+			}
+			mBatch.apply();
+		} catch (RemoteException e) {
+			Log.e(TAG, "Could not store photos", e);
+			mSyncResult.databaseError = true;
+		} catch (OperationApplicationException e) {
+			Log.e(TAG, "Could not store photos", e);
+			mSyncResult.databaseError = true;
+		}
+		mPendingEntries.clear();
+		mPendingBytes = 0;
+	}
+
+	/**
+	 * Hashes the raw values of the deferred attributes, before any scaling,
+	 * so the result only changes when the directory's copy does.
+	 */
+	private static String hash(SearchResultEntry entry, String[] attributes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e); // every Android release has SHA-1
+		}
+		boolean empty = true;
+		for (String name : attributes) {
+			Attribute attr = entry.getAttribute(name);
+			if (attr == null)
+				continue;
+			digest.update(name.toLowerCase().getBytes());
+			for (byte[] value : attr.getValueByteArrays()) {
+				digest.update(value);
+				empty = false;
+			}
+		}
+		if (empty)
+			return NO_PHOTO;
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static SearchResultEntry scale(SearchResultEntry entry, String[] attributes) {
+		ArrayList<Attribute> scaled = new ArrayList<Attribute>();
+		for (String name : attributes) {
+			Attribute attr = entry.getAttribute(name);
+			if (attr == null)
+				continue;
+			ArrayList<byte[]> values = new ArrayList<byte[]>();
+			for (byte[] value : attr.getValueByteArrays()) {
+				byte[] photo = scalePhoto(value);
+				if (photo != null)
+					values.add(photo);
+			}
+			if (!values.isEmpty())
+				scaled.add(new Attribute(attr.getName(), values.toArray(new byte[values.size()][])));
+		}
+		return new SearchResultEntry(entry.getDN(), scaled, entry.getControls());
+	}
+
+	/**
+	 * Shrinks an image to thumbnail size, decoding it at the smallest
+	 * power-of-two sample size that's still big enough.  Returns null for
+	 * data that isn't an image.
+	 */
+	static byte[] scalePhoto(byte[] photo) {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(photo, 0, photo.length, opts);
+		int width = opts.outWidth, height = opts.outHeight;
+		if (width <= 0 || height <= 0) {
+			Log.w(TAG, "Ignoring photo that can't be decoded");
+			return null;
+		}
+		if (width <= PHOTO_SIZE && height <= PHOTO_SIZE)
+			return photo;
+
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= PHOTO_SIZE && height / (sampleSize * 2) >= PHOTO_SIZE)
+			sampleSize *= 2;
+		opts = new BitmapFactory.Options();
+		opts.inSampleSize = sampleSize;
+		Bitmap bitmap = BitmapFactory.decodeByteArray(photo, 0, photo.length, opts);
+		if (bitmap == null)
+			return null;
+		float ratio = Math.min((float) PHOTO_SIZE / bitmap.getWidth(), (float) PHOTO_SIZE / bitmap.getHeight());
+		if (ratio < 1) {
+			Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * ratio),
+					Math.round(bitmap.getHeight() * ratio), true);
+			if (scaled != bitmap)
+				bitmap.recycle();
+			bitmap = scaled;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,179 @@
+package info.codethink.ldapsync;
+
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+
+/**
+ * Passes search results to another listener running on a thread of its
+ * own.  The searching thread (which for a synchronous search is the one
+ * that called search(), not the connection's reader) only has to queue
+ * each result before reading the next, so the server's stream keeps
+ * flowing while the previous entries are turned into contacts.  The queue
+ * is bounded, so a search that gets too far ahead waits for the other
+ * thread to catch up.
+ *
+ * Events reach the target in the order the server sent them.  If the
+ * target throws, later events are dropped, and the exception is rethrown
+ * to the searching thread by the next event it queues, and from drain()
+ * or finish().
+ */
+class QueuedContactListener implements LDAPContactSource.ContactListener {
+	private static final long serialVersionUID = 1L;
+	private static final String TAG = "QueuedContactListener";
+	private static final int QUEUE_SIZE = 256;
+
+	private static final int ENTRY = 0;
+	private static final int DELETED = 1;
+	private static final int PRESENT = 2;
+	private static final int PAGE_COMPLETED = 3;
+	private static final int DRAIN = 4;
+	private static final int END = 5;
+
+	private static class Event {
+		final int type;
+		final SearchResultEntry entry;
+		final String dn;
+		final UUID uuid;
+		final CountDownLatch done;
+
+		Event(int type, SearchResultEntry entry, String dn, UUID uuid, CountDownLatch done) {
+			this.type = type;
+			this.entry = entry;
+			this.dn = dn;
+			this.uuid = uuid;
+			this.done = done;
+		}
+	}
+
+	private final LDAPContactSource.ContactListener mTarget;
+	private final BlockingQueue<Event> mQueue = new ArrayBlockingQueue<Event>(QUEUE_SIZE);
+	private final Thread mWorker;
+	private volatile RuntimeException mError;
+
+	public QueuedContactListener(LDAPContactSource.ContactListener target) {
+		mTarget = target;
+		mWorker = new Thread("QueuedContactListener") {
+			@Override
+			public void run() {
+				processEvents();
+			}
+		};
+		mWorker.start();
+	}
+
+	private void processEvents() {
+		for (;;) {
+			Event event;
+			try {
+				event = mQueue.take();
+			} catch (InterruptedException e) {
+				mError = new RuntimeException("Interrupted while syncing", e);
+				return;
+			}
+			if (event.done != null) {
+				event.done.countDown();
+				if (event.type == END) return;
+				continue;
+			}
+			if (mError != null)
+				continue; // keep draining so the reader isn't blocked
+			try {
+				switch (event.type) {
+				case ENTRY: mTarget.searchEntryReturned(event.entry); break;
+				case DELETED: mTarget.entryDeleted(event.dn, event.uuid); break;
+				case PRESENT: mTarget.entryPresent(event.dn, event.uuid); break;
+				case PAGE_COMPLETED: mTarget.pageCompleted(); break;
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Error handling search result", e);
+				mError = e;
+			} catch (Throwable t) {
+				// an Error (out of memory, say) mustn't leave the search waiting on a full queue
+				Log.e(TAG, "Error handling search result", t);
+				mError = new RuntimeException("Error handling search result", t);
+			}
+		}
+	}
+
+	/**
+	 * Queues a search result, unless handling an earlier one has failed, in
+	 * which case the search is stopped by throwing that failure.
+	 */
+	private void enqueue(Event event) {
+		if (mError != null)
+			throw mError;
+		put(event);
+	}
+
+	// waits for room in the queue, as long as the worker is there to make it
+	private void put(Event event) {
+		try {
+			while (!mQueue.offer(event, 1, TimeUnit.SECONDS)) {
+				if (!mWorker.isAlive())
+					throw mError != null ? mError : new RuntimeException("Search results are no longer being handled");
+			}
+		} catch (InterruptedException e) {
+			mError = new RuntimeException("Interrupted while syncing", e);
+			throw mError;
+		}
+	}
+
+	private void await(int type) {
+		CountDownLatch done = new CountDownLatch(1);
+		put(new Event(type, null, null, null, done)); // even after an error, so the worker gets to stop
+		try {
+			while (!done.await(1, TimeUnit.SECONDS)) {
+				if (!mWorker.isAlive()) break;
+			}
+		} catch (InterruptedException e) {
+			mError = new RuntimeException("Interrupted while syncing", e);
+		}
+		if (mError != null)
+			throw mError;
+	}
+
+	// references unsupported, ignore
+	public void searchReferenceReturned(SearchResultReference searchReference) {}
+
+	public void searchEntryReturned(SearchResultEntry searchEntry) {
+		enqueue(new Event(ENTRY, searchEntry, null, null, null));
+	}
+
+	public void entryDeleted(String dn, UUID uuid) {
+		enqueue(new Event(DELETED, null, dn, uuid, null));
+	}
+
+	public void entryPresent(String dn, UUID uuid) {
+		enqueue(new Event(PRESENT, null, dn, uuid, null));
+	}
+
+	public void pageCompleted() {
+		enqueue(new Event(PAGE_COMPLETED, null, null, null, null));
+	}
+
+	/**
+	 * Waits until every event queued so far has been handled.
+	 */
+	public void drain() {
+		await(DRAIN);
+	}
+
+	/**
+	 * Handles the remaining events and stops the worker thread.  The
+	 * listener can't be used afterwards.
+	 */
+	public void finish() {
+		if (mWorker.isAlive())
+			await(END);
+		else if (mError != null)
+			throw mError;
+	}
+}
@@ -0,0 +1,219 @@
+package info.codethink.ldapsync;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.HashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.ExtendedResult;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.PostConnectProcessor;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.extensions.StartTLSExtendedRequest;
+import com.unboundid.util.ssl.SSLUtil;
+import com.unboundid.util.ssl.TrustAllTrustManager;
+
+/**
+ * One SSLContext per server and trust setting, kept for the life of the
+ * process.  Its client session cache outlives the connections (and the
+ * connection pools) that use it, so reconnecting to a server resumes the
+ * previous TLS session instead of doing a full handshake.  The trust
+ * managers are built once, since loading the system CA store isn't cheap.
+ *
+ * Every handshake made through a context from here is counted and timed,
+ * along with whether it resumed a session.
+ */
+class SSLContextCache {
+	private static final String TAG = "SSLContextCache";
+
+	private static final int SESSION_CACHE_SIZE = 4;
+	private static final int SESSION_TIMEOUT_SECONDS = 12 * 60 * 60; // servers usually give up sooner
+
+	private static final HashMap<String, SSLContext> sContexts = new HashMap<String, SSLContext>();
+	private static TrustManager[] sDefaultTrust;
+	private static TrustManager[] sTrustAll;
+
+	private static int sHandshakes;
+	private static int sResumed;
+	private static long sHandshakeMillis;
+
+	/**
+	 * Returns the context for a server, creating it the first time.
+	 */
+	public static synchronized SSLContext getContext(String host, int port, boolean trustAnyCert)
+			throws GeneralSecurityException {
+		String key = host + ":" + port + "|" + trustAnyCert;
+		SSLContext context = sContexts.get(key);
+		if (context == null) {
+			context = new SSLUtil(getTrustManagers(trustAnyCert)).createSSLContext();
+			SSLSessionContext sessions = context.getClientSessionContext();
+			if (sessions != null) {
+				sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+				sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+			}
+			sContexts.put(key, context);
+		}
+		return context;
+	}
+
+	/**
+	 * Returns a factory for LDAPS sockets which completes (and times) the
+	 * handshake as soon as each socket is connected.
+	 */
+	public static SSLSocketFactory getSocketFactory(String host, int port, boolean trustAnyCert)
+			throws GeneralSecurityException {
+		return new TimedSocketFactory(getContext(host, port, trustAnyCert).getSocketFactory());
+	}
+
+	/**
+	 * Returns a post-connect processor which does StartTLS with the
+	 * server's context.
+	 */
+	public static PostConnectProcessor getStartTLSProcessor(String host, int port, boolean trustAnyCert)
+			throws GeneralSecurityException {
+		return new StartTLSProcessor(getContext(host, port, trustAnyCert));
+	}
+
+	private static synchronized TrustManager[] getTrustManagers(boolean trustAnyCert)
+			throws GeneralSecurityException {
+		if (trustAnyCert) {
+			if (sTrustAll == null)
+				sTrustAll = new TrustManager[] { new TrustAllTrustManager() };
+			return sTrustAll;
+		}
+		if (sDefaultTrust == null) {
+			TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			factory.init((KeyStore)null);
+			sDefaultTrust = factory.getTrustManagers();
+		}
+		return sDefaultTrust;
+	}
+
+	private static synchronized void recordHandshake(long millis, boolean resumed) {
+		sHandshakes++;
+		if (resumed) sResumed++;
+		sHandshakeMillis += millis;
+		Log.d(TAG, (resumed ? "Resumed" : "Full") + " TLS handshake took " + millis + "ms");
+	}
+
+	public static synchronized int getHandshakeCount() {
+		return sHandshakes;
+	}
+
+	public static synchronized int getResumedCount() {
+		return sResumed;
+	}
+
+	public static synchronized long getHandshakeMillis() {
+		return sHandshakeMillis;
+	}
+
+	private static class TimedSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory mFactory;
+
+		TimedSocketFactory(SSLSocketFactory factory) {
+			mFactory = factory;
+		}
+
+		// handshake now rather than on the first write, so it can be timed
+		private static Socket handshake(Socket socket) throws IOException {
+			SSLSocket ssl = (SSLSocket)socket;
+			long started = System.currentTimeMillis();
+			long start = SystemClock.elapsedRealtime();
+			ssl.startHandshake();
+			recordHandshake(SystemClock.elapsedRealtime() - start, ssl.getSession().getCreationTime() < started);
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return mFactory.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return mFactory.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return handshake(mFactory.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return handshake(mFactory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return handshake(mFactory.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return handshake(mFactory.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			return handshake(mFactory.createSocket(address, port, localAddress, localPort));
+		}
+	}
+
+	private static class StartTLSProcessor implements PostConnectProcessor {
+		private final SSLContext mContext;
+
+		StartTLSProcessor(SSLContext context) {
+			mContext = context;
+		}
+
+		public void processPreAuthenticatedConnection(LDAPConnection connection) throws LDAPException {
+			long started = System.currentTimeMillis();
+			long start = SystemClock.elapsedRealtime();
+			ExtendedResult result = connection.processExtendedOperation(new StartTLSExtendedRequest(mContext));
+			if (result.getResultCode() != ResultCode.SUCCESS)
+				throw new LDAPException(result);
+			recordHandshake(SystemClock.elapsedRealtime() - start, resumedSince(started));
+		}
+
+		public void processPostAuthenticatedConnection(LDAPConnection connection) {
+		}
+
+		/**
+		 * Guesses whether the handshake that began at the given time resumed
+		 * a session.  The socket is hidden inside the connection, so this
+		 * looks for a session that was used since then but created before.
+		 * When StartTLS runs on several connections at once, as parallel
+		 * searches and the pool do, another connection's resumption can be
+		 * seen instead, so the resumed count is only a rough guide.
+		 */
+		private boolean resumedSince(long started) {
+			SSLSessionContext sessions = mContext.getClientSessionContext();
+			if (sessions == null)
+				return false;
+			for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+				SSLSession session = sessions.getSession(ids.nextElement());
+				if (session != null && session.getCreationTime() < started && session.getLastAccessedTime() >= started)
+					return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package info.codethink.ldapsync;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
+
+/**
+ * What a server says about itself in its root DSE: its naming contexts and
+ * the controls and extended operations it supports.  This hardly ever
+ * changes, so it's kept in memory for the life of the process and in the
+ * account's user data between syncs, rather than read again every time
+ * someone syncs or browses.
+ *
+ * Servers that won't show their root DSE (or leave the supported controls
+ * out of it) are assumed to support everything, so features still get
+ * tried and fall back the way they did before.
+ */
+class ServerInfo {
+	private static final String TAG = "ServerInfo";
+
+	/** Older than this and it's used, but refreshed in the background */
+	static final long REFRESH_AGE_MILLIS = 6 * 60 * 60 * 1000L;
+	/** Older than this and it's read again before being used */
+	static final long MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+	private static final String KEY_SERVER = "rootdse.server";
+	private static final String KEY_FETCHED = "rootdse.fetched";
+	private static final String KEY_NAMING_CONTEXTS = "rootdse.namingcontexts";
+	private static final String KEY_CONTROLS = "rootdse.controls";
+	private static final String KEY_EXTENSIONS = "rootdse.extensions";
+
+	private static final HashMap<String, ServerInfo> sCache = new HashMap<String, ServerInfo>();
+	private static final HashSet<String> sRefreshing = new HashSet<String>();
+
+	private final String[] mNamingContexts;
+	private final HashSet<String> mControls = new HashSet<String>();
+	private final HashSet<String> mExtensions = new HashSet<String>();
+	private final long mFetched;
+
+	private ServerInfo(String[] namingContexts, String[] controls, String[] extensions, long fetched) {
+		mNamingContexts = namingContexts;
+		for (String oid: controls) mControls.add(oid);
+		for (String oid: extensions) mExtensions.add(oid);
+		mFetched = fetched;
+	}
+
+	/**
+	 * Reads the root DSE over the given connection.
+	 */
+	public static ServerInfo fetch(LDAPConnection connection) throws LDAPException {
+		Log.v(TAG, "Reading root DSE of " + connection.getConnectedAddress());
+		RootDSE root = connection.getRootDSE();
+		if (root == null) {
+			Log.w(TAG, "Server doesn't show its root DSE");
+			return new ServerInfo(new String[0], new String[0], new String[0], System.currentTimeMillis());
+		}
+		return new ServerInfo(nonNull(root.getNamingContextDNs()), nonNull(root.getSupportedControlOIDs()),
+				nonNull(root.getSupportedExtendedOperationOIDs()), System.currentTimeMillis());
+	}
+
+	private static String[] nonNull(String[] values) {
+		return values == null ? new String[0] : values;
+	}
+
+	/**
+	 * Returns the copy kept in memory for a server, if there is one.
+	 */
+	public static ServerInfo getCached(String server) {
+		synchronized (sCache) {
+			return sCache.get(server);
+		}
+	}
+
+	public static void putCached(String server, ServerInfo info) {
+		synchronized (sCache) {
+			sCache.put(server, info);
+		}
+	}
+
+	/**
+	 * Claims the background refresh for a server.  Returns false if one is
+	 * already running; otherwise call endRefresh() when done.
+	 */
+	public static boolean startRefresh(String server) {
+		synchronized (sRefreshing) {
+			return sRefreshing.add(server);
+		}
+	}
+
+	public static void endRefresh(String server) {
+		synchronized (sRefreshing) {
+			sRefreshing.remove(server);
+		}
+	}
+
+	/**
+	 * Loads the copy saved with an account, or returns null if there isn't
+	 * one for this server.
+	 */
+	public static ServerInfo load(AccountManager mgr, Account acct, String server) {
+		if (!server.equals(mgr.getUserData(acct, KEY_SERVER)))
+			return null; // never saved, or the account now points somewhere else
+		long fetched;
+		try {
+			fetched = Long.parseLong(mgr.getUserData(acct, KEY_FETCHED));
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Ignoring saved root DSE without a valid " + KEY_FETCHED);
+			return null;
+		}
+		return new ServerInfo(split(mgr.getUserData(acct, KEY_NAMING_CONTEXTS), "\n"),
+				split(mgr.getUserData(acct, KEY_CONTROLS), " "),
+				split(mgr.getUserData(acct, KEY_EXTENSIONS), " "), fetched);
+	}
+
+	public void save(AccountManager mgr, Account acct, String server) {
+		Bundle saved = new Bundle();
+		saved.putString(KEY_SERVER, server);
+		saved.putString(KEY_FETCHED, Long.toString(mFetched));
+		saved.putString(KEY_NAMING_CONTEXTS, join(mNamingContexts, "\n"));
+		saved.putString(KEY_CONTROLS, join(mControls.toArray(new String[mControls.size()]), " "));
+		saved.putString(KEY_EXTENSIONS, join(mExtensions.toArray(new String[mExtensions.size()]), " "));
+		Utils.saveSettings(mgr, acct, saved);
+	}
+
+	private static String[] split(String value, String separator) {
+		if (value == null || value.length() == 0)
+			return new String[0];
+		return value.split(separator);
+	}
+
+	private static String join(String[] values, String separator) {
+		StringBuilder joined = new StringBuilder();
+		for (String value: values) {
+			if (joined.length() > 0) joined.append(separator);
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	public long getAge() {
+		return System.currentTimeMillis() - mFetched;
+	}
+
+	/**
+	 * Returns the server's first naming context, which is searched when the
+	 * account doesn't name a search base.
+	 */
+	public String getRootDN() throws LDAPException {
+		if (mNamingContexts.length == 0)
+			throw new LDAPException(ResultCode.NO_SUCH_OBJECT, "Server doesn't list its naming contexts, please set a search base");
+		return mNamingContexts[0];
+	}
+
+	public boolean supportsControl(String oid) {
+		return mControls.isEmpty() || mControls.contains(oid);
+	}
+
+	public boolean supportsExtendedOperation(String oid) {
+		return mExtensions.isEmpty() || mExtensions.contains(oid);
+	}
+}
@@ -0,0 +1,280 @@
+package info.codethink.ldapsync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import android.accounts.Account;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+
+/**
+ * The LDAP entries each account's contacts were last synced from, kept in
+ * a database of our own so a changed entry can be diffed against its last
+ * version instead of the raw contact's ContactsContract.Data rows.  Only
+ * the attributes the mapping writes to the contacts DB are kept, as LDIF
+ * with the attributes sorted.  Entries are looked up by account and a hash
+ * of the normalized DN, which keeps the index small however long the DNs
+ * are.
+ *
+ * Each entry is stored with the mapping fingerprint it was synced with.
+ * Writes are made after the contacts batch holding the entries' changes
+ * has been applied, but aren't part of its transaction, so getEntries()
+ * only returns an entry whose fingerprint matches the raw contact's SYNC1:
+ * if the contacts and the stored copy ever disagree, the copy is ignored.
+ */
+class ShadowStore extends SQLiteOpenHelper {
+	private static final String TAG = "ShadowStore";
+
+	private static final String DATABASE_NAME = "shadow.db";
+	private static final int DATABASE_VERSION = 1;
+	private static final String TABLE = "entries";
+	private static final int WRITE_GROUP_SIZE = 100; // entries per transaction
+
+	private static ShadowStore sInstance;
+
+	public static synchronized ShadowStore get(Context ctx) {
+		if (sInstance == null)
+			sInstance = new ShadowStore(ctx.getApplicationContext());
+		return sInstance;
+	}
+
+	private ShadowStore(Context ctx) {
+		super(ctx, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY, account TEXT NOT NULL, "
+				+ "dnhash INTEGER NOT NULL, dn TEXT NOT NULL, fingerprint TEXT NOT NULL, ldif TEXT NOT NULL)");
+		db.execSQL("CREATE INDEX " + TABLE + "_dnhash ON " + TABLE + " (account, dnhash)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// it's only a copy of the directory, the next full sync fills it again
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+		onCreate(db);
+	}
+
+	private static String where(Account account, String normalizedDN) {
+		return "account = " + DatabaseUtils.sqlEscapeString(account.name)
+			+ " AND dnhash = " + normalizedDN.hashCode()
+			+ " AND dn = " + DatabaseUtils.sqlEscapeString(normalizedDN);
+	}
+
+	/**
+	 * Looks up several entries as they were last synced, in one query.
+	 * outEntries[i] is set to the copy of dns[i] if it was stored with
+	 * fingerprints[i], and to null otherwise.  Returns how many were found.
+	 */
+	public int getEntries(Account account, String[] dns, String[] fingerprints, int count, Entry[] outEntries) {
+		StringBuilder selection = new StringBuilder("account = " + DatabaseUtils.sqlEscapeString(account.name) + " AND dnhash IN (");
+		String[] normalized = new String[count];
+		for (int i = 0; i < count; i++) {
+			outEntries[i] = null;
+			normalized[i] = LocalContactIndex.normalizeDN(dns[i]);
+			if (i > 0) selection.append(',');
+			selection.append(normalized[i].hashCode());
+		}
+		selection.append(')');
+
+		Cursor c;
+		try {
+			c = getReadableDatabase().query(TABLE, new String[] { "dn", "fingerprint", "ldif" },
+					selection.toString(), null, null, null, null);
+		} catch (SQLException e) {
+			Log.w(TAG, "Could not read stored entries", e);
+			return 0;
+		}
+		int found = 0;
+		try {
+			while (c.moveToNext()) {
+				String dn = c.getString(0);
+				for (int i = 0; i < count; i++) {
+					if (outEntries[i] != null || !normalized[i].equals(dn) || !c.getString(1).equals(fingerprints[i]))
+						continue;
+					try {
+						outEntries[i] = LDIFReader.decodeEntry(c.getString(2).split("\n"));
+						found++;
+					} catch (LDIFException e) {
+						Log.w(TAG, "Ignoring undecodable stored copy of " + dn, e);
+					}
+					break;
+				}
+			}
+		} finally {
+			c.close();
+		}
+		return found;
+	}
+
+	/**
+	 * Forgets everything stored for an account.
+	 */
+	public void deleteAccount(Account account) {
+		getWritableDatabase().delete(TABLE, "account = ?", new String[] { account.name });
+	}
+
+	public Writer newWriter(Account account, LDAPSyncMapping mapping) {
+		return new Writer(account, mapping, loadStored(account));
+	}
+
+	/**
+	 * Returns the DN and fingerprint hashes of every entry stored for the
+	 * account, packed into longs and sorted, for Writer.isStored().
+	 */
+	private long[] loadStored(Account account) {
+		Cursor c;
+		try {
+			c = getReadableDatabase().query(TABLE, new String[] { "dnhash", "fingerprint" },
+					"account = ?", new String[] { account.name }, null, null, null);
+		} catch (SQLException e) {
+			Log.w(TAG, "Could not read stored entries, storing them all again", e);
+			return new long[0];
+		}
+		try {
+			long[] stored = new long[c.getCount()];
+			for (int i = 0; c.moveToNext(); i++)
+				stored[i] = pack(c.getInt(0), c.getString(1));
+			Arrays.sort(stored);
+			return stored;
+		} finally {
+			c.close();
+		}
+	}
+
+	private static long pack(int dnHash, String fingerprint) {
+		return ((long)dnHash << 32) | (fingerprint.hashCode() & 0xffffffffL);
+	}
+
+	/**
+	 * Collects the entries a sync stores or deletes.  takeWrites() hands
+	 * over what has been collected as a task which writes it in one
+	 * transaction, to be run on another thread, so the thread mapping the
+	 * entries never waits for the database.  Can be used from several
+	 * threads.
+	 */
+	public class Writer {
+		private final Account mAccount;
+		private final LDAPSyncMapping mMapping;
+		private final ArrayList<ContentValues> mStores = new ArrayList<ContentValues>();
+		private final ArrayList<String> mDeletes = new ArrayList<String>(); // normalized DNs
+		private final long[] mStored; // what was stored when the sync started
+
+		private Writer(Account account, LDAPSyncMapping mapping, long[] stored) {
+			mAccount = account;
+			mMapping = mapping;
+			mStored = stored;
+		}
+
+		/**
+		 * Tells whether the entry was already stored with this fingerprint
+		 * when the sync started, so unchanged entries that were never stored
+		 * (or were stored by a sync that then failed) can be filled in.  A
+		 * hash collision can make this wrongly true, which only costs a
+		 * missing copy.
+		 */
+		public boolean isStored(String dn, String fingerprint) {
+			return Arrays.binarySearch(mStored, pack(LocalContactIndex.normalizeDN(dn).hashCode(), fingerprint)) >= 0;
+		}
+
+		/**
+		 * Stores the attributes of the entry that the mapping writes to the
+		 * contacts DB, the same ones its fingerprint covers.
+		 */
+		public synchronized void store(SearchResultEntry entry, String fingerprint) {
+			ArrayList<Attribute> attribs = new ArrayList<Attribute>();
+			for (Attribute attrib: entry.getAttributes()) {
+				if (mMapping.isSyncedAttribute(attrib.getName()))
+					attribs.add(attrib);
+			}
+			Collections.sort(attribs, new Comparator<Attribute>() {
+				public int compare(Attribute a, Attribute b) {
+					return a.getName().compareToIgnoreCase(b.getName());
+				}
+			});
+			String[] lines = new Entry(entry.getDN(), attribs).toLDIF(0); // unwrapped
+			StringBuilder ldif = new StringBuilder();
+			for (String line: lines) {
+				if (ldif.length() > 0) ldif.append('\n');
+				ldif.append(line);
+			}
+			String dn = LocalContactIndex.normalizeDN(entry.getDN());
+			ContentValues values = new ContentValues();
+			values.put("account", mAccount.name);
+			values.put("dnhash", dn.hashCode());
+			values.put("dn", dn);
+			values.put("fingerprint", fingerprint);
+			values.put("ldif", ldif.toString());
+			mStores.add(values);
+		}
+
+		public synchronized void delete(String dn) {
+			mDeletes.add(LocalContactIndex.normalizeDN(dn));
+		}
+
+		/**
+		 * Whether enough has been collected that it should be handed over.
+		 */
+		public synchronized boolean isFull() {
+			return mStores.size() + mDeletes.size() >= WRITE_GROUP_SIZE;
+		}
+
+		/**
+		 * Returns a task which writes everything collected so far, or null
+		 * if there's nothing to write.
+		 */
+		public synchronized Runnable takeWrites() {
+			if (mStores.isEmpty() && mDeletes.isEmpty())
+				return null;
+			final ArrayList<ContentValues> stores = new ArrayList<ContentValues>(mStores);
+			final ArrayList<String> deletes = new ArrayList<String>(mDeletes);
+			mStores.clear();
+			mDeletes.clear();
+			return new Runnable() {
+				public void run() {
+					write(stores, deletes);
+				}
+			};
+		}
+
+		private void write(ArrayList<ContentValues> stores, ArrayList<String> deletes) {
+			SQLiteDatabase db;
+			try {
+				db = getWritableDatabase();
+			} catch (SQLException e) {
+				Log.w(TAG, "Could not open the database to store synced entries", e);
+				return;
+			}
+			db.beginTransaction();
+			try {
+				for (ContentValues values: stores) {
+					db.delete(TABLE, where(mAccount, values.getAsString("dn")), null);
+					db.insert(TABLE, null, values);
+				}
+				for (String dn: deletes)
+					db.delete(TABLE, where(mAccount, dn), null);
+				db.setTransactionSuccessful();
+			} catch (SQLException e) {
+				// only a copy, so it's not worth failing the sync over
+				Log.w(TAG, "Could not store synced entries", e);
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+}
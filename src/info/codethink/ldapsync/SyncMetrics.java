@@ -0,0 +1,234 @@
+package info.codethink.ldapsync;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+
+/**
+ * Where one sync spent its time.  The sync adapter, the contact source, the
+ * mapping's transformer and the contacts batch all report into it, from
+ * whichever thread they run on, and at the end it's turned into a short
+ * report.  The last MAX_REPORTS reports are kept in the account's user
+ * data, for AccountList to show.
+ *
+ * Mapping is reported per entry, so changes to the mapping or the batch
+ * building show up as a change in the next sync's numbers.  Counting
+ * allocations slows everything down, so it's only done with debug logging
+ * turned on for this class ("adb shell setprop log.tag.SyncMetrics DEBUG").
+ */
+class SyncMetrics {
+	private static final String TAG = "SyncMetrics";
+	private static final String KEY_REPORTS = "metrics.reports";
+	private static final String REPORT_SEPARATOR = "\n\n";
+	private static final int MAX_REPORTS = 5;
+
+	// upper bounds of the applyBatch latency histogram's buckets; the last bucket is open
+	private static final long[] APPLY_BUCKET_MILLIS = { 50, 100, 250, 500, 1000, 2500 };
+
+	private final long mStarted = SystemClock.elapsedRealtime();
+	private final long mStartedWallClock = System.currentTimeMillis();
+	private final int mHandshakesBefore = SSLContextCache.getHandshakeCount();
+	private final int mResumedBefore = SSLContextCache.getResumedCount();
+	private final long mHandshakeMillisBefore = SSLContextCache.getHandshakeMillis();
+	private final long mBindMillisBefore = ConnectionManager.getBindMillis();
+
+	private String mMode = "not started";
+	private long mConnectMillis;
+
+	private long mSearchStarted;
+	private long mFirstEntryMillis = -1;
+	private long mSearchMillis;
+	private int mEntries;
+	private long mBytes;
+
+	private final boolean mCountAllocations = Log.isLoggable(TAG, Log.DEBUG);
+	private int mMappingAllocsBefore; // only touched by the thread doing the mapping
+	private int mMappedEntries;
+	private long mMappingNanos;
+	private long mMappingAllocs;
+	private int mOps;
+	private int mLookupHits;
+	private int mLookupMisses;
+
+	private final int[] mApplyHistogram = new int[APPLY_BUCKET_MILLIS.length + 1];
+	private int mBatches;
+	private long mApplyMillis;
+	private long mSlowestApplyMillis;
+
+	private long mSweepMillis;
+	private long mPhotoMillis;
+
+	public SyncMetrics() {
+		if (mCountAllocations)
+			Debug.startAllocCounting(); // stopped by save()
+	}
+
+	/** Checking out (and if need be opening, securing and binding) the connection */
+	public synchronized void connected(long millis) {
+		mConnectMillis += millis;
+	}
+
+	public synchronized void searchStarted(String mode) {
+		mMode = mode;
+		mSearchStarted = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Counts an entry as it arrives from the server, with a rough idea of
+	 * its size on the wire.
+	 */
+	public void entryReceived(SearchResultEntry entry) {
+		long bytes = entry.getDN().length();
+		for (Attribute attrib: entry.getAttributes()) {
+			bytes += attrib.getName().length();
+			for (ASN1OctetString value: attrib.getRawValues())
+				bytes += value.getValueLength();
+		}
+		synchronized (this) {
+			if (mEntries++ == 0)
+				mFirstEntryMillis = SystemClock.elapsedRealtime() - mSearchStarted;
+			mBytes += bytes;
+		}
+	}
+
+	public synchronized void searchFinished() {
+		mSearchMillis = SystemClock.elapsedRealtime() - mSearchStarted;
+	}
+
+	/**
+	 * Call just before mapping an entry, and pass the result to entryMapped
+	 * once its operations are built.
+	 */
+	public long mappingStarted() {
+		if (mCountAllocations)
+			mMappingAllocsBefore = Debug.getThreadAllocCount();
+		return System.nanoTime();
+	}
+
+	public void entryMapped(long started, int ops) {
+		long nanos = System.nanoTime() - started;
+		int allocs = mCountAllocations ? Debug.getThreadAllocCount() - mMappingAllocsBefore : 0;
+		synchronized (this) {
+			mMappedEntries++;
+			mMappingNanos += nanos;
+			mMappingAllocs += allocs;
+			mOps += ops;
+		}
+	}
+
+	/** Whether an entry from the server matched a contact already on the phone */
+	public synchronized void localLookup(boolean found) {
+		if (found) mLookupHits++;
+		else mLookupMisses++;
+	}
+
+	public synchronized void batchApplied(int count, long millis) {
+		int bucket = 0;
+		while (bucket < APPLY_BUCKET_MILLIS.length && millis >= APPLY_BUCKET_MILLIS[bucket])
+			bucket++;
+		mApplyHistogram[bucket]++;
+		mBatches++;
+		mApplyMillis += millis;
+		mSlowestApplyMillis = Math.max(mSlowestApplyMillis, millis);
+	}
+
+	public synchronized void sweepFinished(long millis) {
+		mSweepMillis = millis;
+	}
+
+	public synchronized void photosFinished(long millis) {
+		mPhotoMillis = millis;
+	}
+
+	/**
+	 * Sums up the sync in a few lines of text.
+	 */
+	public synchronized String report(SyncResult result) {
+		long total = SystemClock.elapsedRealtime() - mStarted;
+		StringBuilder report = new StringBuilder();
+		report.append(new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(mStartedWallClock)));
+		report.append(", ").append(mMode).append(", ").append(seconds(total)).append(", ").append(outcome(result));
+
+		report.append("\nConnect ").append(mConnectMillis).append("ms (");
+		report.append(SSLContextCache.getHandshakeCount() - mHandshakesBefore).append(" TLS handshakes, ");
+		report.append(SSLContextCache.getResumedCount() - mResumedBefore).append(" resumed, ");
+		report.append(SSLContextCache.getHandshakeMillis() - mHandshakeMillisBefore).append("ms, bind ");
+		report.append(ConnectionManager.getBindMillis() - mBindMillisBefore).append("ms)");
+
+		report.append("\n").append(mEntries).append(" entries in ").append(seconds(mSearchMillis));
+		if (mFirstEntryMillis >= 0)
+			report.append(", first after ").append(mFirstEntryMillis).append("ms");
+		if (mSearchMillis > 0)
+			report.append(", ").append(mEntries * 1000L / mSearchMillis).append("/s");
+		report.append(", ~").append(mBytes / 1024).append("KB");
+
+		report.append("\nMapping ").append(seconds(mMappingNanos / 1000000));
+		if (mMappedEntries > 0) {
+			report.append(", ").append(mMappingNanos / 1000 / mMappedEntries).append("us/entry, ");
+			report.append(mOps * 10 / mMappedEntries / 10.0).append(" ops/entry");
+			if (mCountAllocations)
+				report.append(", ").append(mMappingAllocs / mMappedEntries).append(" allocs/entry");
+		}
+		report.append("; ");
+		report.append(mLookupHits).append(" stored, ").append(mLookupMisses).append(" new");
+
+		report.append("\n").append(mBatches).append(" batches, ").append(seconds(mApplyMillis));
+		report.append(" applying, slowest ").append(mSlowestApplyMillis).append("ms");
+		for (int i = 0; i < mApplyHistogram.length; i++) {
+			if (mApplyHistogram[i] == 0) continue;
+			report.append(i == 0 ? ": " : ", ");
+			report.append(i < APPLY_BUCKET_MILLIS.length ? "<" + APPLY_BUCKET_MILLIS[i] : ">=" + APPLY_BUCKET_MILLIS[i - 1]);
+			report.append("ms ").append(mApplyHistogram[i]);
+		}
+
+		report.append("\nSweep ").append(mSweepMillis).append("ms, photos ").append(seconds(mPhotoMillis));
+		return report.toString();
+	}
+
+	private static String outcome(SyncResult result) {
+		if (result.databaseError) return "database error";
+		if (result.stats.numAuthExceptions > 0) return "login failed";
+		if (result.stats.numIoExceptions > 0) return "network error";
+		return "ok";
+	}
+
+	private static String seconds(long millis) {
+		return (millis / 1000) + "." + (millis % 1000 / 100) + "s";
+	}
+
+	/**
+	 * Adds this sync's report to the account's, dropping the oldest.
+	 */
+	public void save(AccountManager mgr, Account acct, SyncResult result) {
+		if (mCountAllocations)
+			Debug.stopAllocCounting();
+		StringBuilder reports = new StringBuilder(report(result));
+		String[] old = loadReports(mgr, acct);
+		for (int i = 0; i < old.length && i < MAX_REPORTS - 1; i++)
+			reports.append(REPORT_SEPARATOR).append(old[i]);
+		Bundle saved = new Bundle();
+		saved.putString(KEY_REPORTS, reports.toString());
+		Utils.saveSettings(mgr, acct, saved);
+	}
+
+	/**
+	 * Returns the reports kept for an account, newest first.
+	 */
+	public static String[] loadReports(AccountManager mgr, Account acct) {
+		String reports = mgr.getUserData(acct, KEY_REPORTS);
+		if (reports == null || reports.length() == 0)
+			return new String[0];
+		return reports.split(REPORT_SEPARATOR);
+	}
+}
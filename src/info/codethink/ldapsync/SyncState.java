@@ -0,0 +1,165 @@
+package info.codethink.ldapsync;
+
+import java.text.ParseException;
+import java.util.Date;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.util.Base64;
+import com.unboundid.util.StaticUtils;
+
+/**
+ * Bookkeeping carried from one sync of an account to the next.  This lives
+ * in the account's user data next to the settings, but unlike them it is
+ * never shown or edited in the UI.
+ */
+class SyncState {
+	private static final String TAG = "SyncState";
+
+	private static final String KEY_LAST_MODIFIED = "sync.lastmodified";
+	private static final String KEY_LAST_FULL_SYNC = "sync.lastfullsync";
+	private static final String KEY_COOKIE = "sync.cookie";
+	private static final String KEY_LAST_PHOTO_SCAN = "sync.lastphotoscan";
+
+	/** Newest modifyTimestamp seen by a completed sync, or null if unknown */
+	String mLastModified;
+	/** When the last complete (non-incremental) sync finished */
+	long mLastFullSync;
+	/** When the photo of every contact was last checked */
+	long mLastPhotoScan;
+
+	/** RFC 4533 sync cookie from the last completed content sync, base64 encoded */
+	String mCookie;
+
+	/** Latest sync cookie returned so far during the current sync */
+	private String mNewCookie;
+	/** Newest modifyTimestamp seen so far during the current sync */
+	private String mNewestModified;
+	private Date mNewestModifiedDate;
+
+	public static SyncState load(AccountManager mgr, Account acct) {
+		SyncState state = new SyncState();
+		state.mLastModified = mgr.getUserData(acct, KEY_LAST_MODIFIED);
+		state.mCookie = mgr.getUserData(acct, KEY_COOKIE);
+		state.mLastFullSync = loadTime(mgr, acct, KEY_LAST_FULL_SYNC);
+		state.mLastPhotoScan = loadTime(mgr, acct, KEY_LAST_PHOTO_SCAN);
+		return state;
+	}
+
+	private static long loadTime(AccountManager mgr, Account acct, String key) {
+		String time = mgr.getUserData(acct, key);
+		if (time != null) {
+			try {
+				return Long.parseLong(time);
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Ignoring bad " + key + " value " + time);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Forgets everything about previous syncs, so the next one is a full
+	 * sync.
+	 */
+	public static void reset(AccountManager mgr, Account acct) {
+		new SyncState().save(mgr, acct);
+	}
+
+	public void save(AccountManager mgr, Account acct) {
+		Bundle state = new Bundle();
+		state.putString(KEY_LAST_MODIFIED, mLastModified);
+		state.putString(KEY_LAST_FULL_SYNC, Long.toString(mLastFullSync));
+		state.putString(KEY_COOKIE, mCookie);
+		state.putString(KEY_LAST_PHOTO_SCAN, Long.toString(mLastPhotoScan));
+		Utils.saveSettings(mgr, acct, state);
+	}
+
+	/**
+	 * Decides whether the next search can be limited to entries changed since
+	 * the last one.
+	 */
+	public boolean canSyncIncrementally(long fullSyncIntervalMillis) {
+		return mLastModified != null &&
+			System.currentTimeMillis() - mLastFullSync < fullSyncIntervalMillis;
+	}
+
+	/**
+	 * Decides whether the photo of every contact is due to be checked,
+	 * rather than just those of new or modified entries.
+	 */
+	public boolean needsPhotoScan(long photoScanIntervalMillis) {
+		return System.currentTimeMillis() - mLastPhotoScan >= photoScanIntervalMillis;
+	}
+
+	public void photoScanCompleted() {
+		mLastPhotoScan = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records a modifyTimestamp value from an entry returned by the search.
+	 */
+	public synchronized void entryModified(String timestamp) {
+		try {
+			Date date = StaticUtils.decodeGeneralizedTime(timestamp);
+			if (mNewestModifiedDate == null || date.after(mNewestModifiedDate)) {
+				mNewestModified = timestamp;
+				mNewestModifiedDate = date;
+			}
+		} catch (ParseException e) {
+			Log.w(TAG, "Ignoring unparseable modifyTimestamp " + timestamp);
+		}
+	}
+
+	/**
+	 * Moves the high-water mark forward once a search has completed.  A
+	 * full search that didn't see any timestamps means the server doesn't
+	 * provide them, so incremental sync stays off.
+	 */
+	public void searchCompleted(boolean incremental) {
+		if (!incremental) {
+			mLastFullSync = System.currentTimeMillis();
+			mLastModified = mNewestModified;
+		} else if (mNewestModified != null) {
+			mLastModified = mNewestModified;
+		}
+		mNewestModified = null;
+		mNewestModifiedDate = null;
+	}
+
+	public ASN1OctetString getCookie() {
+		if (mCookie == null)
+			return null;
+		try {
+			return new ASN1OctetString(Base64.decode(mCookie));
+		} catch (ParseException e) {
+			Log.w(TAG, "Discarding corrupt sync cookie", e);
+			return null;
+		}
+	}
+
+	public void clearCookie() {
+		mCookie = null;
+		mNewCookie = null;
+	}
+
+	public synchronized void cookieReturned(ASN1OctetString cookie) {
+		mNewCookie = Base64.encode(cookie.getValue());
+	}
+
+	/**
+	 * Keeps the newest cookie once a content sync has completed.  A
+	 * refresh that covered the whole directory counts as a full sync.
+	 */
+	public void contentSyncCompleted(boolean fullRefresh) {
+		if (fullRefresh)
+			mLastFullSync = System.currentTimeMillis();
+		if (mNewCookie != null)
+			mCookie = mNewCookie;
+		mNewCookie = null;
+	}
+}
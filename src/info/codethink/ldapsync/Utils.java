@@ -35,7 +35,7 @@ public class Utils {
 	}
 	public static Bundle getSavedSettngs(AccountManager mgr, Account acct)
 	{
-		String[] allSettings = new String[] { "server", "binddn", "basedn", "security" };
+		String[] allSettings = new String[] { "server", "binddn", "basedn", "security", "syncmode", "fullsyncinterval", "pagesize", "keepunmapped", "filter" };
 		Bundle settings = new Bundle();
 		for (String key: allSettings) {
 			settings.putString(key, mgr.getUserData(acct, key));
@@ -0,0 +1,86 @@
+package info.codethink.ldapsync;
+
+import java.io.File;
+
+import android.content.ContentProviderOperation;
+import android.content.SyncResult;
+import android.provider.ContactsContract.RawContacts;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Failures on ContactsBatch's writer thread, which must reach the thread
+ * building the batches rather than leave it waiting on a full queue.
+ */
+@MediumTest
+public class ContactsBatchTest extends SyncTestCase {
+	private static final int BATCHES = 10; // well past the writer's queue
+
+	private static ContentProviderOperation newInsert(int i) {
+		return ContentProviderOperation.newInsert(Utils.syncURI(RawContacts.CONTENT_URI))
+				.withValue(RawContacts.SOURCE_ID, "cn=" + i).build();
+	}
+
+	public void testProviderFailure() throws Exception {
+		IllegalStateException failure = new IllegalStateException("provider failed");
+		mProvider.setBatchFailure(failure);
+		ContactsBatch batch = new ContactsBatch(mClient);
+		batch.startWriter();
+		int thrown = 0;
+		for (int i = 0; i < BATCHES; i++) {
+			batch.add(newInsert(i));
+			try {
+				batch.apply();
+			} catch (IllegalStateException e) {
+				assertEquals(failure, e);
+				thrown++;
+			}
+		}
+		try {
+			batch.finish();
+			fail("finish() didn't rethrow the writer's failure");
+		} catch (IllegalStateException e) {
+			assertEquals(failure, e);
+		}
+		assertTrue(thrown > 0);
+		assertEquals(0, mProvider.count("raw_contacts"));
+	}
+
+	public void testAfterApplyFailure() throws Exception {
+		ContactsBatch batch = new ContactsBatch(mClient);
+		batch.startWriter();
+		batch.add(newInsert(0));
+		batch.runAfterApply(new Runnable() {
+			public void run() {
+				throw new IllegalArgumentException("task failed");
+			}
+		});
+		batch.apply();
+		for (int i = 1; i < BATCHES; i++) {
+			batch.add(newInsert(i));
+			try {
+				batch.apply();
+			} catch (IllegalArgumentException e) {
+				break;
+			}
+		}
+		try {
+			batch.finish();
+			fail("finish() didn't rethrow the task's failure");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testSyncWithFailingProvider() throws Exception {
+		File file = new File(mContext.getCacheDir(), "contactsbatch.ldif");
+		try {
+			LDIFGenerator.write(file, 1000, false);
+			mProvider.setBatchFailure(new IllegalStateException("provider failed"));
+			SyncResult result = sync(new LDIFDirectory(file));
+			assertTrue(result.toString(), result.databaseError);
+			assertEquals(0, mProvider.count("raw_contacts"));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package info.codethink.ldapsync;
+
+import java.io.File;
+
+import android.accounts.AccountManager;
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Content syncs against an LDIFDirectory: the refresh from scratch, a
+ * sync from the saved cookie ending in a present phase or a delete phase,
+ * and the fresh start after the server refuses the cookie.
+ */
+@MediumTest
+public class ContentSyncTest extends SyncTestCase {
+	private static final int PEOPLE = 100;
+	private static final int CHANGED = PEOPLE / 10; // see LDIFGenerator's mutation
+	private static final int GONE = PEOPLE / 50;
+
+	private File mFile;
+	private LDIFDirectory mDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(mContext.getCacheDir(), "contentsync.ldif");
+		mDirectory = new LDIFDirectory(mFile);
+		LDIFGenerator.write(mFile, PEOPLE, false);
+	}
+
+	@Override
+	protected Bundle settings() {
+		Bundle settings = super.settings();
+		settings.putString("syncmode", "Content sync (RFC 4533)");
+		return settings;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	private SyncState syncState() {
+		return SyncState.load(AccountManager.get(mContext), mAccount);
+	}
+
+	private SyncResult syncOK() {
+		SyncResult result = sync(mDirectory);
+		assertFalse(result.toString(), result.hasError());
+		return result;
+	}
+
+	public void testRefresh() throws Exception {
+		SyncResult result = syncOK();
+		assertEquals(1, mDirectory.getRefreshCount());
+		assertEquals(PEOPLE, result.stats.numInserts);
+		assertEquals(PEOPLE, mProvider.count("raw_contacts"));
+		assertNotNull(syncState().getCookie());
+	}
+
+	public void testCookieWithPresentPhase() throws Exception {
+		syncOK();
+		String firstCookie = syncState().getCookie().stringValue();
+
+		SyncResult result = syncOK();
+		assertEquals(1, mDirectory.getRefreshCount());
+		assertEquals(0, result.stats.numInserts);
+		assertEquals(0, result.stats.numUpdates);
+		assertEquals(0, result.stats.numDeletes);
+		assertFalse(firstCookie.equals(syncState().getCookie().stringValue()));
+
+		LDIFGenerator.write(mFile, PEOPLE, true);
+		result = syncOK();
+		assertEquals(1, mDirectory.getRefreshCount());
+		assertEquals(GONE, result.stats.numInserts);
+		assertEquals(CHANGED, result.stats.numUpdates);
+		assertEquals(GONE, result.stats.numDeletes); // swept: the present phase didn't mention them
+		assertEquals(PEOPLE, mProvider.count("raw_contacts"));
+	}
+
+	public void testCookieWithDeletePhase() throws Exception {
+		mDirectory.setRefreshDeletes(true);
+		syncOK();
+		LDIFGenerator.write(mFile, PEOPLE, true);
+		SyncResult result = syncOK();
+		assertEquals(1, mDirectory.getRefreshCount());
+		assertEquals(GONE, result.stats.numInserts);
+		assertEquals(CHANGED, result.stats.numUpdates);
+		assertEquals(GONE, result.stats.numDeletes); // from DELETE states, as nothing is swept
+		assertEquals(PEOPLE, mProvider.count("raw_contacts"));
+	}
+
+	public void testRefreshRequired() throws Exception {
+		syncOK();
+		mDirectory.forgetSnapshot();
+		LDIFGenerator.write(mFile, PEOPLE, true);
+		SyncResult result = syncOK();
+		assertEquals(2, mDirectory.getRefreshCount());
+		assertEquals(GONE, result.stats.numInserts);
+		assertEquals(CHANGED, result.stats.numUpdates);
+		assertEquals(GONE, result.stats.numDeletes);
+		assertEquals(PEOPLE, mProvider.count("raw_contacts"));
+		assertNotNull(syncState().getCookie());
+	}
+}
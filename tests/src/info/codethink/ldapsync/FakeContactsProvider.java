@@ -0,0 +1,169 @@
+package info.codethink.ldapsync;
+
+import java.util.ArrayList;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Stands in for the contacts provider, with just the raw_contacts and
+ * data tables the sync adapter uses, in an in-memory database.  Selections
+ * are passed to SQLite as they are, so they're checked the way the real
+ * provider would check them.  connect() hands out a client for it.
+ */
+class FakeContactsProvider extends ContentProvider {
+	private static final String RAW_CONTACTS = "raw_contacts";
+	private static final String DATA = "data";
+
+	private SQLiteDatabase mDb;
+	private volatile RuntimeException mBatchFailure;
+
+	/**
+	 * Starts the provider and returns a client for it, as the sync adapter
+	 * would be given for the contacts provider.
+	 */
+	public static ContentProviderClient connect(Context context, ContentProvider provider) {
+		provider.attachInfo(context, null); // calls onCreate()
+		MockContentResolver resolver = new MockContentResolver();
+		resolver.addProvider(ContactsContract.AUTHORITY, provider);
+		return resolver.acquireContentProviderClient(ContactsContract.AUTHORITY);
+	}
+
+	@Override
+	public boolean onCreate() {
+		mDb = SQLiteDatabase.create(null);
+		mDb.execSQL("CREATE TABLE " + RAW_CONTACTS + " (" + RawContacts._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+				+ RawContacts.ACCOUNT_NAME + " TEXT, " + RawContacts.ACCOUNT_TYPE + " TEXT, "
+				+ RawContacts.SOURCE_ID + " TEXT, " + RawContacts.VERSION + " INTEGER NOT NULL DEFAULT 1, "
+				+ RawContacts.DIRTY + " INTEGER NOT NULL DEFAULT 0, " + RawContacts.DELETED + " INTEGER NOT NULL DEFAULT 0, "
+				+ RawContacts.SYNC1 + " TEXT, " + RawContacts.SYNC2 + " TEXT, " + RawContacts.SYNC3 + " TEXT, "
+				+ RawContacts.SYNC4 + " TEXT)");
+		StringBuilder data = new StringBuilder("CREATE TABLE " + DATA + " (" + Data._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+				+ Data.RAW_CONTACT_ID + " INTEGER NOT NULL, " + Data.MIMETYPE + " TEXT NOT NULL, "
+				+ Data.IS_PRIMARY + " INTEGER NOT NULL DEFAULT 0, " + Data.DATA_VERSION + " INTEGER NOT NULL DEFAULT 0");
+		for (int i = 1; i <= 15; i++)
+			data.append(", data").append(i); // untyped, as in the real provider
+		data.append(')');
+		mDb.execSQL(data.toString());
+		mDb.execSQL("CREATE INDEX " + DATA + "_raw_contact_id ON " + DATA + " (" + Data.RAW_CONTACT_ID + ")");
+		return true;
+	}
+
+	private static String table(Uri uri) {
+		String table = uri.getPathSegments().get(0);
+		if (!table.equals(RAW_CONTACTS) && !table.equals(DATA))
+			throw new IllegalArgumentException("Not faked: " + uri);
+		return table;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		return null;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		return mDb.query(table(uri), projection, selection, selectionArgs, null, null, sortOrder);
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		return ContentUris.withAppendedId(uri, mDb.insertOrThrow(table(uri), null, values));
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		return mDb.update(table(uri), values, selection, selectionArgs);
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		String table = table(uri);
+		if (table.equals(RAW_CONTACTS)) {
+			// a sync adapter's delete removes the contact for good, data and all
+			mDb.delete(DATA, Data.RAW_CONTACT_ID + " IN (SELECT " + RawContacts._ID + " FROM " + RAW_CONTACTS
+					+ (selection == null ? "" : " WHERE " + selection) + ")", selectionArgs);
+		}
+		return mDb.delete(table, selection, selectionArgs);
+	}
+
+	/**
+	 * Makes every later applyBatch() throw the exception (null stops it).
+	 */
+	public void setBatchFailure(RuntimeException failure) {
+		mBatchFailure = failure;
+	}
+
+	/**
+	 * Applies the batch in one transaction, as the real provider does.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		if (mBatchFailure != null)
+			throw mBatchFailure;
+		mDb.beginTransaction();
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			mDb.setTransactionSuccessful();
+			return results;
+		} finally {
+			mDb.endTransaction();
+		}
+	}
+
+	/**
+	 * Counts the rows of a table ("raw_contacts" or "data").
+	 */
+	public int count(String table) {
+		Cursor c = mDb.rawQuery("SELECT COUNT(*) FROM " + table, null);
+		try {
+			c.moveToFirst();
+			return c.getInt(0);
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Lists every data row as a line of its contact's source id, MIME type
+	 * and data columns, in a stable order, so that the contacts two syncs
+	 * leave behind can be compared whatever their ids.
+	 */
+	public ArrayList<String> dumpData() {
+		StringBuilder columns = new StringBuilder("r." + RawContacts.SOURCE_ID + ", d." + Data.MIMETYPE);
+		for (int i = 1; i <= 15; i++)
+			columns.append(", quote(d.data").append(i).append(')'); // blobs too
+		Cursor c = mDb.rawQuery("SELECT " + columns + " FROM " + DATA + " d JOIN " + RAW_CONTACTS + " r ON d."
+				+ Data.RAW_CONTACT_ID + " = r." + RawContacts._ID + " ORDER BY 1, 2, 3, 4, 5, 6, 7, 8, 9", null);
+		try {
+			ArrayList<String> rows = new ArrayList<String>(c.getCount());
+			while (c.moveToNext()) {
+				StringBuilder row = new StringBuilder();
+				for (int i = 0; i < 2 + 15; i++)
+					row.append(i == 0 ? "" : " | ").append(c.getString(i));
+				rows.add(row.toString());
+			}
+			return rows;
+		} finally {
+			c.close();
+		}
+	}
+
+	public void close() {
+		mDb.close();
+	}
+}
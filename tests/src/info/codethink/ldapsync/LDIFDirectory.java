@@ -0,0 +1,403 @@
+package info.codethink.ldapsync;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.UUID;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.controls.ContentSyncDoneControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+import com.unboundid.ldif.LDIFException;
+import com.unboundid.ldif.LDIFReader;
+
+/**
+ * A directory read from an LDIF file instead of a server, for running
+ * whole syncs in the tests.  Hand it to LDAPContactSource.setStandIn().
+ *
+ * Every search reads the file again, so rewriting it between syncs looks
+ * like changes on a server, and modifyTimestamp attributes in it make
+ * incremental syncs work.  There's no root DSE (the first entry in the
+ * file is taken as the naming context), so no paging or server side
+ * sorting.  getEntry() finds entries through an index of where each one
+ * starts in the file.
+ *
+ * Content sync (RFC 4533) is answered in refreshOnly mode.  Each content
+ * sync keeps a snapshot of the entries it returned, with a hash of each,
+ * and hands out a cookie for it.  A sync with that cookie gets the entries
+ * added or changed since, and then either PRESENT states for the unchanged
+ * ones (a present phase) or DELETE states for the ones gone (a delete
+ * phase, see setRefreshDeletes()).  Any other cookie gets
+ * e-syncRefreshRequired, as from a server whose change log has moved on.
+ * Intermediate responses are never sent.
+ */
+class LDIFDirectory implements LDAPContactSource.StandIn {
+	private final File mFile;
+
+	// normalized DN hashes, sorted, and the offset of the entry each came from
+	private int[] mHashes;
+	private long[] mOffsets;
+	private long mIndexedLength = -1;
+	private long mIndexedModified;
+
+	// content sync: the entries as of the last cookie handed out, by normalized DN
+	private HashMap<String, Integer> mSnapshot;
+	private ASN1OctetString mCookie;
+	private int mGeneration;
+	private boolean mRefreshDeletes;
+	private int mRefreshes; // content syncs without a cookie
+
+	public LDIFDirectory(File file) {
+		mFile = file;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * Makes syncs with a cookie end in a delete phase, listing the entries
+	 * removed since, rather than a present phase listing those still there.
+	 */
+	public void setRefreshDeletes(boolean refreshDeletes) {
+		mRefreshDeletes = refreshDeletes;
+	}
+
+	/**
+	 * Forgets the last snapshot, so its cookie needs a refresh.
+	 */
+	public void forgetSnapshot() {
+		mSnapshot = null;
+		mCookie = null;
+	}
+
+	/**
+	 * The number of content syncs that started from scratch.
+	 */
+	public int getRefreshCount() {
+		return mRefreshes;
+	}
+
+	/**
+	 * Does what LDAPConnection.search() does with the request: entries go
+	 * to its listener if it has one, and going over its size limit throws
+	 * an LDAPSearchException holding the entries found so far.  Controls
+	 * other than a content sync request are ignored.
+	 */
+	public SearchResult search(SearchRequest request) throws LDAPSearchException {
+		Control syncControl = request.getControl(ContentSyncRequestControl.SYNC_REQUEST_OID);
+		if (syncControl != null)
+			return contentSync(request, syncControl);
+		SearchResultListener listener = request.getSearchResultListener();
+		ArrayList<SearchResultEntry> found = listener == null ? new ArrayList<SearchResultEntry>() : null;
+		int count = 0;
+		LDIFReader reader = openReader();
+		try {
+			for (Entry entry = reader.readEntry(); entry != null; entry = reader.readEntry()) {
+				if (!entry.matchesBaseAndScope(request.getBaseDN(), request.getScope())
+						|| !request.getFilter().matchesEntry(entry))
+					continue;
+				if (request.getSizeLimit() > 0 && count == request.getSizeLimit()) {
+					throw new LDAPSearchException(new SearchResult(-1, ResultCode.SIZE_LIMIT_EXCEEDED,
+							"More than " + count + " entries in " + mFile, null, null, found,
+							Collections.<SearchResultReference>emptyList(), count, 0, null));
+				}
+				count++;
+				SearchResultEntry result = select(entry, request.getAttributes());
+				if (listener != null)
+					listener.searchEntryReturned(result);
+				else
+					found.add(result);
+			}
+		} catch (LDAPSearchException e) {
+			throw e;
+		} catch (LDAPException e) {
+			throw new LDAPSearchException(e);
+		} catch (IOException e) {
+			throw new LDAPSearchException(ResultCode.SERVER_DOWN, "Error reading " + mFile, e);
+		} catch (LDIFException e) {
+			throw new LDAPSearchException(ResultCode.DECODING_ERROR, "Bad entry in " + mFile + ": " + e.getMessage(), e);
+		} finally {
+			close(reader);
+		}
+		if (listener != null)
+			return new SearchResult(-1, ResultCode.SUCCESS, null, null, null, count, 0, null);
+		return new SearchResult(-1, ResultCode.SUCCESS, null, null, null, found,
+				Collections.<SearchResultReference>emptyList(), count, 0, null);
+	}
+
+	/**
+	 * Answers a content sync request, which has to have a listener.  Size
+	 * limits are ignored.
+	 */
+	private SearchResult contentSync(SearchRequest request, Control control) throws LDAPSearchException {
+		ASN1OctetString cookie;
+		try {
+			cookie = (control instanceof ContentSyncRequestControl ?
+					(ContentSyncRequestControl)control : new ContentSyncRequestControl(control)).getCookie();
+		} catch (LDAPException e) {
+			throw new LDAPSearchException(e);
+		}
+		HashMap<String, Integer> previous = null;
+		if (cookie != null) {
+			if (mCookie == null || !Arrays.equals(cookie.getValue(), mCookie.getValue()))
+				throw new LDAPSearchException(ResultCode.E_SYNC_REFRESH_REQUIRED, "Unknown sync cookie " + cookie.stringValue());
+			previous = mSnapshot;
+		} else {
+			mRefreshes++;
+		}
+		boolean deletePhase = previous != null && mRefreshDeletes;
+
+		SearchResultListener listener = request.getSearchResultListener();
+		HashMap<String, Integer> snapshot = new HashMap<String, Integer>();
+		int count = 0;
+		LDIFReader reader = openReader();
+		try {
+			for (Entry entry = reader.readEntry(); entry != null; entry = reader.readEntry()) {
+				if (!entry.matchesBaseAndScope(request.getBaseDN(), request.getScope())
+						|| !request.getFilter().matchesEntry(entry))
+					continue;
+				String dn = LocalContactIndex.normalizeDN(entry.getDN());
+				int hash = entry.toLDIFString().hashCode();
+				snapshot.put(dn, hash);
+				Integer old = previous == null ? null : previous.remove(dn);
+				SearchResultEntry result;
+				if (old != null && old == hash) {
+					if (deletePhase)
+						continue; // unchanged entries aren't mentioned
+					result = new SearchResultEntry(entry.getDN(), new Attribute[0], stateControl(ContentSyncState.PRESENT, dn));
+				} else {
+					SearchResultEntry selected = select(entry, request.getAttributes());
+					result = new SearchResultEntry(selected.getDN(), selected.getAttributes(),
+							stateControl(old == null ? ContentSyncState.ADD : ContentSyncState.MODIFY, dn));
+				}
+				listener.searchEntryReturned(result);
+				count++;
+			}
+			if (deletePhase) {
+				for (String dn: previous.keySet()) {
+					listener.searchEntryReturned(new SearchResultEntry(dn, new Attribute[0], stateControl(ContentSyncState.DELETE, dn)));
+					count++;
+				}
+			}
+		} catch (LDAPException e) {
+			throw new LDAPSearchException(e);
+		} catch (IOException e) {
+			throw new LDAPSearchException(ResultCode.SERVER_DOWN, "Error reading " + mFile, e);
+		} catch (LDIFException e) {
+			throw new LDAPSearchException(ResultCode.DECODING_ERROR, "Bad entry in " + mFile + ": " + e.getMessage(), e);
+		} finally {
+			close(reader);
+		}
+		mSnapshot = snapshot;
+		mCookie = new ASN1OctetString("ldif-" + ++mGeneration);
+		return new SearchResult(-1, ResultCode.SUCCESS, null, null, null, count, 0,
+				new Control[] { new ContentSyncDoneControl(mCookie, deletePhase) });
+	}
+
+	// entryUUIDs are made up from the normalized DN, so they stay the same across syncs
+	private static ContentSyncStateControl stateControl(ContentSyncState state, String normalizedDN) {
+		UUID uuid;
+		try {
+			uuid = UUID.nameUUIDFromBytes(normalizedDN.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e); // every JVM has UTF-8
+		}
+		return new ContentSyncStateControl(state, uuid, null);
+	}
+
+	/**
+	 * Returns the entry with the given DN, or null if there isn't one.  The
+	 * file is indexed on the first call, and again whenever it changes.
+	 */
+	public SearchResultEntry getEntry(String dn, String... attributes) throws LDAPException {
+		String normalized = LocalContactIndex.normalizeDN(dn);
+		try {
+			if (mFile.length() != mIndexedLength || mFile.lastModified() != mIndexedModified)
+				buildIndex();
+			int hash = normalized.hashCode();
+			int i = Arrays.binarySearch(mHashes, hash);
+			if (i < 0)
+				return null;
+			while (i > 0 && mHashes[i - 1] == hash)
+				i--;
+			for (; i < mHashes.length && mHashes[i] == hash; i++) {
+				Entry entry = readEntryAt(mOffsets[i]);
+				if (entry != null && LocalContactIndex.normalizeDN(entry.getDN()).equals(normalized))
+					return select(entry, attributes);
+			}
+			return null;
+		} catch (IOException e) {
+			throw new LDAPException(ResultCode.SERVER_DOWN, "Error reading " + mFile, e);
+		} catch (LDIFException e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Bad entry in " + mFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the DN of the first entry in the file.
+	 */
+	public String getRootDN() throws LDAPException {
+		LDIFReader reader = openReader();
+		try {
+			Entry first = reader.readEntry();
+			if (first == null)
+				throw new LDAPException(ResultCode.NO_SUCH_OBJECT, mFile + " has no entries");
+			return first.getDN();
+		} catch (IOException e) {
+			throw new LDAPException(ResultCode.SERVER_DOWN, "Error reading " + mFile, e);
+		} catch (LDIFException e) {
+			throw new LDAPException(ResultCode.DECODING_ERROR, "Bad entry in " + mFile + ": " + e.getMessage(), e);
+		} finally {
+			close(reader);
+		}
+	}
+
+	public boolean supportsControl(String oid) {
+		return oid.equals(ContentSyncRequestControl.SYNC_REQUEST_OID);
+	}
+
+	/**
+	 * Finds where each entry starts by reading just its dn line (and any
+	 * continuation lines), leaving the rest of the entry unparsed.
+	 */
+	private void buildIndex() throws IOException, LDIFException {
+		long length = mFile.length(), modified = mFile.lastModified();
+		int[] hashes = new int[1024];
+		long[] offsets = new long[1024];
+		int count = 0;
+		InputStream in = new BufferedInputStream(new FileInputStream(mFile), 16 * 1024);
+		try {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			StringBuilder dnLine = null; // while reading an entry's dn line
+			boolean inEntry = false;
+			long offset = 0;
+			for (;;) {
+				long lineStart = offset;
+				line.reset();
+				int c;
+				while ((c = in.read()) != -1 && c != '\n') {
+					offset++;
+					if (c != '\r') line.write(c);
+				}
+				if (c == '\n') offset++;
+				boolean eof = c == -1 && line.size() == 0;
+				String text = eof ? "" : line.toString("UTF-8");
+				if (dnLine != null && text.startsWith(" ")) {
+					dnLine.append(text, 1, text.length());
+					continue;
+				}
+				if (dnLine != null) {
+					hashes[count++] = LocalContactIndex.normalizeDN(decodeDN(dnLine.toString())).hashCode();
+					dnLine = null;
+				}
+				if (eof)
+					break;
+				if (text.length() == 0) {
+					inEntry = false;
+				} else if (!inEntry && !text.startsWith("#") && !text.regionMatches(true, 0, "version:", 0, 8)) {
+					inEntry = true;
+					if (count == offsets.length) {
+						int[] moreHashes = new int[count * 2];
+						long[] moreOffsets = new long[count * 2];
+						System.arraycopy(hashes, 0, moreHashes, 0, count);
+						System.arraycopy(offsets, 0, moreOffsets, 0, count);
+						hashes = moreHashes;
+						offsets = moreOffsets;
+					}
+					offsets[count] = lineStart;
+					dnLine = new StringBuilder(text);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		long[] sorted = new long[count]; // hash and index, packed so they sort together
+		for (int i = 0; i < count; i++)
+			sorted[i] = ((long)hashes[i] << 32) | i;
+		Arrays.sort(sorted);
+		mHashes = new int[count];
+		mOffsets = new long[count];
+		for (int i = 0; i < count; i++) {
+			mHashes[i] = (int)(sorted[i] >> 32);
+			mOffsets[i] = offsets[(int)sorted[i]];
+		}
+		mIndexedLength = length;
+		mIndexedModified = modified;
+	}
+
+	// decodes a dn line, which may be base64 encoded
+	private static String decodeDN(String dnLine) throws LDIFException {
+		return LDIFReader.decodeEntry(dnLine).getDN();
+	}
+
+	private Entry readEntryAt(long offset) throws IOException, LDIFException {
+		InputStream in = new FileInputStream(mFile);
+		try {
+			for (long skipped = 0; skipped < offset; ) {
+				long n = in.skip(offset - skipped);
+				if (n <= 0) return null; // the file shrank under us
+				skipped += n;
+			}
+			return new LDIFReader(in).readEntry();
+		} finally {
+			in.close();
+		}
+	}
+
+	private LDIFReader openReader() throws LDAPSearchException {
+		try {
+			return new LDIFReader(mFile);
+		} catch (IOException e) {
+			throw new LDAPSearchException(ResultCode.CONNECT_ERROR, "Can't read " + mFile, e);
+		}
+	}
+
+	private static void close(LDIFReader reader) {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			// nothing was written, so nothing's lost
+		}
+	}
+
+	/**
+	 * Copies the requested attributes, as a server would.  No attributes or
+	 * "*" means all of them, and SearchRequest.NO_ATTRIBUTES matches none.
+	 */
+	private static SearchResultEntry select(Entry entry, String[] attributes) {
+		if (attributes == null || attributes.length == 0)
+			return new SearchResultEntry(entry);
+		ArrayList<Attribute> selected = new ArrayList<Attribute>();
+		for (String name: attributes) {
+			if (name.equals("*"))
+				return new SearchResultEntry(entry);
+			Attribute attrib = entry.getAttribute(name);
+			if (attrib != null)
+				selected.add(attrib);
+		}
+		return new SearchResultEntry(entry.getDN(), selected);
+	}
+}
@@ -0,0 +1,92 @@
+package info.codethink.ldapsync;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes synthetic directories for the sync tests: a domain, a people
+ * unit and a number of inetOrgPerson entries under it, filled in the way
+ * a company directory usually is.  The same arguments always give the
+ * same file.
+ *
+ * A mutated directory is the same one a while later: one person in ten
+ * has a new mobile number and title, one in fifty has left, and as many
+ * new people have joined, so the number of people stays the same.
+ */
+class LDIFGenerator {
+	public static final String ROOT_DN = "dc=example,dc=com";
+	public static final String PEOPLE_DN = "ou=People," + ROOT_DN;
+
+	private static final String[] GIVEN_NAMES = {
+		"Alice", "Bob", "Carol", "Dave", "Erin", "Frank", "Grace", "Heidi", "Ivan", "Judy", "Mallory", "Oscar"
+	};
+	private static final String[] FAMILY_NAMES = {
+		"Smith", "Jones", "Taylor", "Brown", "Williams", "Wilson", "Johnson", "Davies", "Robinson", "Wright"
+	};
+	private static final String[] CITIES = { "Manchester", "Boston", "London", "Cambridge", "Leeds" };
+	private static final String[] TITLES = { "Engineer", "Manager", "Analyst", "Designer", "Director" };
+
+	public static String dn(int person) {
+		return "uid=user" + person + "," + PEOPLE_DN;
+	}
+
+	/**
+	 * Writes the directory, with count people (a multiple of 50 keeps the
+	 * mutation exact).  Returns the number of people written.
+	 */
+	public static int write(File file, int count, boolean mutated) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+		int written = 0;
+		try {
+			out.write("dn: " + ROOT_DN + "\nobjectClass: top\nobjectClass: domain\ndc: example\n\n");
+			out.write("dn: " + PEOPLE_DN + "\nobjectClass: top\nobjectClass: organizationalUnit\nou: People\n\n");
+			for (int i = 0; i < count; i++) {
+				if (mutated && i % 50 == 1)
+					continue; // left
+				writePerson(out, i, mutated && i % 10 == 0);
+				written++;
+			}
+			if (mutated) {
+				for (int i = count; i < count + count / 50; i++) {
+					writePerson(out, i, false);
+					written++;
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return written;
+	}
+
+	private static void writePerson(Writer out, int i, boolean changed) throws IOException {
+		String given = GIVEN_NAMES[i % GIVEN_NAMES.length];
+		String family = FAMILY_NAMES[(i / GIVEN_NAMES.length) % FAMILY_NAMES.length] + (i / 120);
+		StringBuilder entry = new StringBuilder(512);
+		entry.append("dn: ").append(dn(i)).append('\n');
+		entry.append("objectClass: top\nobjectClass: person\nobjectClass: organizationalPerson\nobjectClass: inetOrgPerson\n");
+		entry.append("uid: user").append(i).append('\n');
+		entry.append("cn: ").append(given).append(' ').append(family).append('\n');
+		entry.append("givenName: ").append(given).append('\n');
+		entry.append("sn: ").append(family).append('\n');
+		entry.append("mail: ").append(given.toLowerCase()).append('.').append(family.toLowerCase()).append("@example.com\n");
+		entry.append("mobile: +44 7700 ").append(900000 + (changed ? i + 1 : i) % 100000).append('\n');
+		if (i % 3 == 0)
+			entry.append("homePhone: +44 161 496 ").append(1000 + i % 9000).append('\n');
+		if (i % 2 == 0) {
+			entry.append("street: ").append(1 + i % 200).append(" High Street\n");
+			entry.append("l: ").append(CITIES[i % CITIES.length]).append('\n');
+			entry.append("postalCode: M").append(1 + i % 30).append(" 1AA\n");
+		}
+		if (i % 4 == 0)
+			entry.append("description: Works on floor ").append(i % 7).append('\n');
+		// not in the mapping, only kept with the keep unmapped setting
+		entry.append("title: ").append(TITLES[(changed ? i + 1 : i) % TITLES.length]).append('\n');
+		entry.append("employeeNumber: ").append(10000 + i).append('\n');
+		entry.append('\n');
+		out.write(entry.toString());
+	}
+}
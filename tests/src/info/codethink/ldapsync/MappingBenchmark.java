@@ -0,0 +1,298 @@
+package info.codethink.ldapsync;
+
+import info.codethink.ldapsync.LDAPSyncMapping.StoredRow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderOperation.Builder;
+import android.content.Context;
+import android.os.Debug;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+
+/**
+ * Per-entry cost of turning LDAP entries into contacts operations, for
+ * synthetic populations that vary the number of mapped attributes, how
+ * many values the multi-valued ones have, how many attributes the mapping
+ * doesn't know, and the photo size.  Operations go through a ContactsBatch
+ * to a NullContactsProvider, so applying them costs nothing.
+ *
+ * Each population is timed once, then run again counting allocations
+ * (which is slow, so it isn't timed), and the results go to the log:
+ *
+ *   adb shell am instrument -w -e class info.codethink.ldapsync.MappingBenchmark \
+ *       info.codethink.ldapsync.tests/android.test.InstrumentationTestRunner
+ *   adb logcat -s MappingBenchmark
+ */
+public class MappingBenchmark extends InstrumentationTestCase {
+	private static final String TAG = "MappingBenchmark";
+	private static final int ENTRIES = 500;
+	private static final int READ_GROUP = 25; // raw contacts per readData(), as in LDAPSyncAdapter
+
+	// the mapped attributes of basicmapping.xml, the ones most directories fill in first
+	private static final String[] MAPPED = {
+		"cn", "sn", "mail", "givenName", "mobile", "homePhone", "phoneNumber", "description",
+		"l", "street", "postalCode", "st", "facsimileTelephoneNumber"
+	};
+	private static final String[] MULTI_VALUED = { "mail", "mobile", "homePhone", "phoneNumber" };
+
+	private static final Population[] POPULATIONS = {
+		new Population("sparse", 3, 1, 0.0),
+		new Population("typical", 8, 1, 0.2),
+		new Population("full", MAPPED.length, 1, 0.2),
+		new Population("multi-valued", 8, 3, 0.2),
+		new Population("mostly unmapped", 8, 1, 0.6),
+	};
+	private static final int[] PHOTO_SIZES = { 4 * 1024, 32 * 1024, 96 * 1024 };
+
+	private static class Population {
+		final String name;
+		final int mapped; // how many of MAPPED each entry has
+		final int values; // values of each MULTI_VALUED attribute
+		final int unmapped; // attributes the mapping doesn't use
+
+		Population(String name, int mapped, int values, double unmappedRatio) {
+			this.name = name;
+			this.mapped = mapped;
+			this.values = values;
+			this.unmapped = (int)Math.round(mapped * unmappedRatio / (1 - unmappedRatio));
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + mapped + " mapped x" + values + ", " + unmapped + " unmapped)";
+		}
+	}
+
+	/** One entry's worth of work */
+	private interface Pass {
+		void run(ContactsBatch batch, int entry) throws Exception;
+	}
+
+	private Context mContext;
+	private LDAPSyncMapping mMapping;
+	private Account mAccount;
+	private ContentProviderClient mNullClient;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		mMapping = LDAPSyncMapping.forResource(mContext.getResources(), R.raw.basicmapping);
+		mAccount = new Account(TAG, LDAPAuthenticator.ACCOUNT_TYPE); // only ever in the fake provider
+		mNullClient = FakeContactsProvider.connect(mContext, new NullContactsProvider());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mNullClient.release();
+		super.tearDown();
+	}
+
+	@LargeTest
+	public void testInsert() throws Exception {
+		for (Population p: POPULATIONS) {
+			final SearchResultEntry[] entries = entries(p, 0);
+			final LDAPSyncMapping.Transformer transformer = mMapping.newTransformer();
+			measure("insert " + p, new Pass() {
+				public void run(ContactsBatch batch, int i) throws Exception {
+					insert(batch, transformer, entries[i]);
+				}
+			});
+		}
+	}
+
+	@LargeTest
+	public void testUpdate() throws Exception {
+		for (Population p: POPULATIONS) {
+			final HashMap<Long, ArrayList<StoredRow>> stored = new HashMap<Long, ArrayList<StoredRow>>();
+			final long[] ids = store(entries(p, 0), stored);
+			final LDAPSyncMapping.Transformer transformer = mMapping.newTransformer();
+			for (int version = 0; version <= 1; version++) {
+				final SearchResultEntry[] entries = entries(p, version);
+				measure((version == 0 ? "unchanged " : "changed ") + p, new Pass() {
+					public void run(ContactsBatch batch, int i) throws Exception {
+						transformer.buildUpdate(batch, entries[i], stored.get(ids[i]), newDataInsert(ids[i]));
+					}
+				});
+			}
+		}
+	}
+
+	@LargeTest
+	public void testPhotos() throws Exception {
+		final HashMap<Long, ArrayList<StoredRow>> stored = new HashMap<Long, ArrayList<StoredRow>>();
+		final long[] ids = store(entries(POPULATIONS[1], 0), stored);
+		final LDAPSyncMapping.Transformer transformer = mMapping.newTransformer();
+		for (int size: PHOTO_SIZES) {
+			final SearchResultEntry[] entries = photoEntries(size);
+			measure("photo " + size / 1024 + "KB", new Pass() {
+				public void run(ContactsBatch batch, int i) throws Exception {
+					transformer.buildDeferredUpdate(batch, entries[i], stored.get(ids[i]), newDataInsert(ids[i]));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Times the pass over every entry, after a run to warm up (which also
+	 * lets ContactsBatch settle its batch size), then counts its allocations.
+	 */
+	private void measure(String label, Pass pass) throws Exception {
+		run(pass);
+		long start = System.nanoTime();
+		ContactsBatch batch = run(pass);
+		long nanos = System.nanoTime() - start;
+
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		run(pass);
+		int allocs = Debug.getThreadAllocCount();
+		Debug.stopAllocCounting();
+
+		Log.i(TAG, label + ": " + nanos / ENTRIES + "ns/entry, " + allocs / ENTRIES + " allocs/entry, "
+				+ (float)batch.getTotalOperations() / ENTRIES + " ops/entry, " + batch.getBatchCount() + " batches");
+	}
+
+	/**
+	 * Runs the pass over every entry, applying the batch whenever it fills
+	 * up, the way the sync adapter does.
+	 */
+	private ContactsBatch run(Pass pass) throws Exception {
+		ContactsBatch batch = new ContactsBatch(mNullClient);
+		for (int i = 0; i < ENTRIES; i++) {
+			pass.run(batch, i);
+			if (batch.isFull())
+				batch.apply();
+		}
+		batch.finish();
+		return batch;
+	}
+
+	/**
+	 * Adds the operations the sync adapter would for a new contact.
+	 */
+	private void insert(ContactsBatch batch, LDAPSyncMapping.Transformer transformer, SearchResultEntry entry) {
+		Builder builder = ContentProviderOperation.newInsert(Utils.syncURI(RawContacts.CONTENT_URI));
+		ContactsBatch.yieldPoint(builder);
+		builder.withValue(RawContacts.ACCOUNT_NAME, mAccount.name);
+		builder.withValue(RawContacts.ACCOUNT_TYPE, mAccount.type);
+		builder.withValue(RawContacts.SOURCE_ID, entry.getDN());
+		batch.add(builder.build());
+		final int rawContactRef = batch.size() - 1;
+		transformer.buildData(batch, entry, new LDAPSyncAdapter.BuilderBuilder() {
+			public Builder newInsert() {
+				Builder result = ContentProviderOperation.newInsert(Utils.syncURI(Data.CONTENT_URI));
+				result.withValueBackReference(Data.RAW_CONTACT_ID, rawContactRef);
+				return result;
+			}
+		});
+	}
+
+	private static LDAPSyncAdapter.BuilderBuilder newDataInsert(final long rawContactId) {
+		return new LDAPSyncAdapter.BuilderBuilder() {
+			public Builder newInsert() {
+				Builder result = ContentProviderOperation.newInsert(Utils.syncURI(Data.CONTENT_URI));
+				result.withValue(Data.RAW_CONTACT_ID, rawContactId);
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Writes the entries to a FakeContactsProvider as new contacts, and reads
+	 * the rows back into outRows as the sync adapter reads them (photos
+	 * included).  Returns the entries' raw contact ids.
+	 */
+	private long[] store(SearchResultEntry[] entries, HashMap<Long, ArrayList<StoredRow>> outRows) throws Exception {
+		FakeContactsProvider provider = new FakeContactsProvider();
+		ContentProviderClient client = FakeContactsProvider.connect(mContext, provider);
+		try {
+			ContactsBatch batch = new ContactsBatch(client);
+			LDAPSyncMapping.Transformer transformer = mMapping.newTransformer();
+			for (SearchResultEntry entry: entries) {
+				insert(batch, transformer, entry);
+				if (batch.isFull())
+					batch.apply();
+			}
+			batch.finish();
+
+			LocalContactIndex index = LocalContactIndex.load(client, mAccount);
+			long[] ids = new long[entries.length];
+			for (int i = 0; i < entries.length; i++)
+				ids[i] = index.getRawContactId(index.find(entries[i].getDN()));
+			long[] group = new long[READ_GROUP];
+			for (int i = 0; i < ids.length; i += READ_GROUP) {
+				int count = Math.min(READ_GROUP, ids.length - i);
+				System.arraycopy(ids, i, group, 0, count);
+				mMapping.readData(client, group, count, outRows, true);
+			}
+			return ids;
+		} finally {
+			client.release();
+			provider.close();
+		}
+	}
+
+	/**
+	 * Makes up the population's entries.  A later version has a different
+	 * mobile number.
+	 */
+	private static SearchResultEntry[] entries(Population p, int version) {
+		SearchResultEntry[] entries = new SearchResultEntry[ENTRIES];
+		for (int i = 0; i < ENTRIES; i++) {
+			ArrayList<Attribute> attribs = new ArrayList<Attribute>();
+			for (int a = 0; a < p.mapped; a++) {
+				String name = MAPPED[a];
+				String[] values = new String[isMultiValued(name) ? p.values : 1];
+				for (int v = 0; v < values.length; v++)
+					values[v] = value(name, i, v, name.equals("mobile") ? version : 0);
+				attribs.add(new Attribute(name, values));
+			}
+			for (int u = 0; u < p.unmapped; u++)
+				attribs.add(new Attribute("x-extra" + u, "extra value " + u + " of entry " + i));
+			entries[i] = new SearchResultEntry(LDIFGenerator.dn(i), attribs);
+		}
+		return entries;
+	}
+
+	/**
+	 * Makes up entries holding just a photo, as PhotoSync reads them.  The
+	 * photos are random bytes, as the mapping never decodes them.
+	 */
+	private static SearchResultEntry[] photoEntries(int photoBytes) {
+		SearchResultEntry[] entries = new SearchResultEntry[ENTRIES];
+		Random random = new Random(0);
+		for (int i = 0; i < ENTRIES; i++) {
+			byte[] photo = new byte[photoBytes];
+			random.nextBytes(photo);
+			entries[i] = new SearchResultEntry(LDIFGenerator.dn(i), new Attribute[] { new Attribute("jpegPhoto", photo) });
+		}
+		return entries;
+	}
+
+	private static boolean isMultiValued(String name) {
+		for (String multi: MULTI_VALUED)
+			if (multi.equals(name)) return true;
+		return false;
+	}
+
+	private static String value(String name, int entry, int index, int version) {
+		if (name.equals("mail"))
+			return "person" + entry + "." + index + "@example.com";
+		if (name.equals("mobile") || name.endsWith("Phone") || name.endsWith("Number"))
+			return "+44 7700 " + (900000 + (entry * 10 + index + version * 7) % 100000);
+		return name + " of entry " + entry;
+	}
+}
@@ -0,0 +1,54 @@
+package info.codethink.ldapsync;
+
+import java.util.ArrayList;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * A contacts provider which accepts every batch without applying it, so
+ * timings of ContactsBatch measure only our side of applyBatch().
+ */
+class NullContactsProvider extends ContentProvider {
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
+		ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+		for (int i = 0; i < results.length; i++)
+			results[i] = new ContentProviderResult(1);
+		return results;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		return null;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,126 @@
+package info.codethink.ldapsync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.accounts.AccountManager;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Bundle;
+import android.provider.ContactsContract.RawContacts;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.unboundid.util.Base64;
+
+/**
+ * Which photos a full sync checks: only those of entries whose
+ * modifyTimestamp has moved, until the photo scan is due again.
+ */
+@MediumTest
+public class PhotoSyncTest extends SyncTestCase {
+	private static final int PEOPLE = 10;
+
+	private File mFile;
+	private LDIFDirectory mDirectory;
+	private int[] mColors = new int[PEOPLE];
+	private String[] mTimestamps = new String[PEOPLE];
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(mContext.getCacheDir(), "photosync.ldif");
+		mDirectory = new LDIFDirectory(mFile);
+		Arrays.fill(mColors, Color.RED);
+		Arrays.fill(mTimestamps, "20261001120000Z");
+	}
+
+	@Override
+	protected Bundle settings() {
+		Bundle settings = super.settings();
+		settings.putString("fullsyncinterval", "0"); // every search is a full one
+		return settings;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testOnlyModifiedPhotosChecked() throws Exception {
+		syncOK();
+		HashMap<String, String> first = rawContacts(RawContacts.SYNC3);
+		assertEquals(PEOPLE, first.size());
+		assertEquals("20261001120000Z", rawContacts(RawContacts.SYNC4).get(LDIFGenerator.dn(0)));
+
+		mColors[1] = Color.BLUE;
+		mTimestamps[1] = "20261002120000Z";
+		mColors[2] = Color.BLUE; // the timestamp didn't move, so this one waits for the scan
+		syncOK();
+		HashMap<String, String> second = rawContacts(RawContacts.SYNC3);
+		assertFalse(first.get(LDIFGenerator.dn(1)).equals(second.get(LDIFGenerator.dn(1))));
+		assertEquals(first.get(LDIFGenerator.dn(2)), second.get(LDIFGenerator.dn(2)));
+		assertEquals(mTimestamps[1], rawContacts(RawContacts.SYNC4).get(LDIFGenerator.dn(1)));
+
+		SyncState state = SyncState.load(AccountManager.get(mContext), mAccount);
+		state.mLastPhotoScan = 0;
+		state.save(AccountManager.get(mContext), mAccount);
+		syncOK();
+		assertEquals(second.get(LDIFGenerator.dn(1)), rawContacts(RawContacts.SYNC3).get(LDIFGenerator.dn(2)));
+	}
+
+	private void syncOK() throws Exception {
+		write();
+		SyncResult result = sync(mDirectory);
+		assertFalse(result.toString(), result.hasError());
+	}
+
+	/**
+	 * Returns a column of every raw contact, by SOURCE_ID.
+	 */
+	private HashMap<String, String> rawContacts(String column) throws Exception {
+		HashMap<String, String> values = new HashMap<String, String>();
+		Cursor c = mClient.query(Utils.syncURI(RawContacts.CONTENT_URI),
+				new String[] { RawContacts.SOURCE_ID, column }, null, null, null);
+		try {
+			while (c.moveToNext())
+				values.put(c.getString(0), c.getString(1));
+		} finally {
+			c.close();
+		}
+		return values;
+	}
+
+	private void write() throws Exception {
+		Writer out = new OutputStreamWriter(new FileOutputStream(mFile), "UTF-8");
+		try {
+			out.write("dn: " + LDIFGenerator.ROOT_DN + "\nobjectClass: top\nobjectClass: domain\ndc: example\n\n");
+			out.write("dn: " + LDIFGenerator.PEOPLE_DN + "\nobjectClass: top\nobjectClass: organizationalUnit\nou: People\n\n");
+			for (int i = 0; i < PEOPLE; i++) {
+				out.write("dn: " + LDIFGenerator.dn(i) + "\nobjectClass: top\nobjectClass: person\n"
+						+ "objectClass: organizationalPerson\nobjectClass: inetOrgPerson\n"
+						+ "uid: user" + i + "\ncn: Person " + i + "\nsn: Person\n"
+						+ "modifyTimestamp: " + mTimestamps[i] + "\n"
+						+ "jpegPhoto:: " + Base64.encode(photo(mColors[i])) + "\n\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] photo(int color) {
+		Bitmap bitmap = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+		bitmap.eraseColor(color);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+		bitmap.recycle();
+		return out.toByteArray();
+	}
+}
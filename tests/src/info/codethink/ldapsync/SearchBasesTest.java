@@ -0,0 +1,50 @@
+package info.codethink.ldapsync;
+
+import java.io.File;
+
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.MediumTest;
+
+/**
+ * Syncs from overlapping search bases with filters of their own, whose
+ * results must be merged without duplicates, and without the attributes
+ * fetched only to test an earlier base's filter.
+ */
+@MediumTest
+public class SearchBasesTest extends SyncTestCase {
+	private static final int PEOPLE = 100;
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(mContext.getCacheDir(), "searchbases.ldif");
+		LDIFGenerator.write(mFile, PEOPLE, false);
+	}
+
+	@Override
+	protected Bundle settings() {
+		Bundle settings = super.settings();
+		// title and employeeNumber aren't in the mapping, so they're only fetched for the filters
+		settings.putString("basedn", LDIFGenerator.PEOPLE_DN + "?(title=Engineer)\n"
+				+ LDIFGenerator.ROOT_DN + "?(employeeNumber=*)");
+		return settings;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testOverlappingFilteredBases() throws Exception {
+		SyncResult result = sync(new LDIFDirectory(mFile));
+		assertFalse(result.toString(), result.hasError());
+		assertEquals(PEOPLE, result.stats.numInserts);
+		assertEquals(PEOPLE, mProvider.count("raw_contacts"));
+		for (String row: mProvider.dumpData())
+			assertFalse(row, row.contains("'title'"));
+	}
+}
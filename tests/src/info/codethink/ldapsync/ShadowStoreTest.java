@@ -0,0 +1,113 @@
+package info.codethink.ldapsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import android.accounts.AccountManager;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.provider.ContactsContract.RawContacts;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.unboundid.ldap.sdk.Entry;
+
+/**
+ * Updates worked out from the entries ShadowStore keeps, which must leave
+ * the same contacts behind as syncing the directory from scratch.
+ */
+@MediumTest
+public class ShadowStoreTest extends SyncTestCase {
+	private static final int PEOPLE = 100;
+
+	private File mFile;
+	private LDIFDirectory mDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(mContext.getCacheDir(), "shadowstore.ldif");
+		mDirectory = new LDIFDirectory(mFile);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	private void syncOK() {
+		SyncResult result = sync(mDirectory);
+		assertFalse(result.toString(), result.hasError());
+	}
+
+	public void testEveryContactStored() throws Exception {
+		LDIFGenerator.write(mFile, PEOPLE, false);
+		addModifyTimestamps();
+		syncOK();
+		Cursor c = mClient.query(Utils.syncURI(RawContacts.CONTENT_URI),
+				new String[] { RawContacts.SOURCE_ID, RawContacts.SYNC1 }, null, null, null);
+		try {
+			String[] dns = new String[c.getCount()];
+			String[] fingerprints = new String[dns.length];
+			for (int i = 0; c.moveToNext(); i++) {
+				dns[i] = c.getString(0);
+				fingerprints[i] = c.getString(1);
+			}
+			Entry[] entries = new Entry[dns.length];
+			assertEquals(PEOPLE, ShadowStore.get(mContext).getEntries(mAccount, dns, fingerprints, dns.length, entries));
+			for (Entry entry: entries)
+				assertNull("bookkeeping attribute stored", entry.getAttribute("modifyTimestamp"));
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Gives every person in the file a modifyTimestamp, which is fetched but
+	 * mustn't be stored.
+	 */
+	private void addModifyTimestamps() throws IOException {
+		StringBuilder ldif = new StringBuilder();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+		try {
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				ldif.append(line).append('\n');
+				if (line.startsWith("uid: "))
+					ldif.append("modifyTimestamp: 20261017120000Z\n");
+			}
+		} finally {
+			in.close();
+		}
+		Writer out = new OutputStreamWriter(new FileOutputStream(mFile), "UTF-8");
+		try {
+			out.write(ldif.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	public void testUpdateMatchesFreshSync() throws Exception {
+		LDIFGenerator.write(mFile, PEOPLE, false);
+		syncOK();
+		LDIFGenerator.write(mFile, PEOPLE, true);
+		syncOK();
+		ArrayList<String> updated = mProvider.dumpData();
+
+		// the same directory into an empty contacts DB
+		mClient.release();
+		mProvider.close();
+		mProvider = new FakeContactsProvider();
+		mClient = FakeContactsProvider.connect(mContext, mProvider);
+		ShadowStore.get(mContext).deleteAccount(mAccount);
+		SyncState.reset(AccountManager.get(mContext), mAccount);
+		syncOK();
+		assertEquals(mProvider.dumpData(), updated);
+	}
+}
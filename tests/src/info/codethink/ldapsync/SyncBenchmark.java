@@ -0,0 +1,71 @@
+package info.codethink.ldapsync;
+
+import java.io.File;
+
+import android.content.SyncResult;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * End-to-end sync timings for directories of 1k, 10k and 100k people.
+ * Each size is synced three times: into an empty contacts DB, again with
+ * nothing changed, and once more after the directory has been mutated
+ * (see LDIFGenerator).  Each run's SyncMetrics report goes to the log:
+ *
+ *   adb shell am instrument -w -e class info.codethink.ldapsync.SyncBenchmark \
+ *       info.codethink.ldapsync.tests/android.test.InstrumentationTestRunner
+ *   adb logcat -s SyncBenchmark
+ */
+public class SyncBenchmark extends SyncTestCase {
+	private static final String TAG = "SyncBenchmark";
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(mContext.getCacheDir(), "benchmark.ldif");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	@LargeTest
+	public void testSync1k() throws Exception {
+		runScenario(1000);
+	}
+
+	@LargeTest
+	public void testSync10k() throws Exception {
+		runScenario(10000);
+	}
+
+	@LargeTest
+	public void testSync100k() throws Exception {
+		runScenario(100000);
+	}
+
+	private void runScenario(int count) throws Exception {
+		LDIFDirectory directory = new LDIFDirectory(mFile);
+		int people = LDIFGenerator.write(mFile, count, false);
+		run(count + " full", directory, people);
+		run(count + " repeat", directory, people);
+		people = LDIFGenerator.write(mFile, count, true);
+		run(count + " mutated", directory, people);
+	}
+
+	private void run(String label, LDIFDirectory directory, int expectedContacts) {
+		long start = SystemClock.elapsedRealtime();
+		SyncResult result = sync(directory);
+		long millis = SystemClock.elapsedRealtime() - start;
+		Log.i(TAG, label + ": " + millis + "ms, " + mProvider.count("raw_contacts") + " contacts, "
+				+ mProvider.count("data") + " data rows, " + result.stats.numInserts + " inserted, "
+				+ result.stats.numUpdates + " updated, " + result.stats.numDeletes + " deleted\n" + lastReport());
+		assertFalse(label + ": " + result, result.hasError());
+		assertEquals(label, expectedContacts, mProvider.count("raw_contacts"));
+	}
+}
@@ -0,0 +1,83 @@
+package info.codethink.ldapsync;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Runs whole syncs through LDAPSyncAdapter.onPerformSync(), with a stand-in
+ * directory instead of a server and a FakeContactsProvider instead of the
+ * contacts provider.  Each test gets an account of its own, which isn't
+ * synced by the system and is removed again afterwards.
+ */
+abstract class SyncTestCase extends InstrumentationTestCase {
+	protected Context mContext;
+	protected Account mAccount;
+	protected FakeContactsProvider mProvider;
+	protected ContentProviderClient mClient;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getInstrumentation().getTargetContext();
+		mAccount = new Account(getClass().getSimpleName() + "." + getName(), LDAPAuthenticator.ACCOUNT_TYPE);
+		AccountManager mgr = AccountManager.get(mContext);
+		assertTrue(mgr.addAccountExplicitly(mAccount, "", settings()));
+		ContentResolver.setIsSyncable(mAccount, ContactsContract.AUTHORITY, 0); // only we sync it
+
+		mProvider = new FakeContactsProvider();
+		mClient = FakeContactsProvider.connect(mContext, mProvider);
+	}
+
+	/**
+	 * The account's settings; the server is never contacted.
+	 */
+	protected Bundle settings() {
+		Bundle settings = new Bundle();
+		settings.putString("server", "localhost");
+		settings.putString("security", "None");
+		settings.putString("binddn", "");
+		settings.putString("basedn", LDIFGenerator.PEOPLE_DN);
+		return settings;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mClient.release();
+		mProvider.close();
+		ShadowStore.get(mContext).deleteAccount(mAccount);
+		AccountManager.get(mContext).removeAccount(mAccount, null, null).getResult();
+		super.tearDown();
+	}
+
+	/**
+	 * Syncs the account from the stand-in, and returns how it went.
+	 */
+	protected SyncResult sync(final LDAPContactSource.StandIn directory) {
+		LDAPSyncAdapter adapter = new LDAPSyncAdapter(mContext) {
+			@Override
+			LDAPContactSource newContactSource(Account account) {
+				LDAPContactSource src = super.newContactSource(account);
+				src.setStandIn(directory);
+				return src;
+			}
+		};
+		SyncResult result = new SyncResult();
+		adapter.onPerformSync(mAccount, new Bundle(), ContactsContract.AUTHORITY, mClient, result);
+		return result;
+	}
+
+	/**
+	 * Returns the report SyncMetrics kept for the last sync.
+	 */
+	protected String lastReport() {
+		String[] reports = SyncMetrics.loadReports(AccountManager.get(mContext), mAccount);
+		return reports.length == 0 ? "no report" : reports[0];
+	}
+}